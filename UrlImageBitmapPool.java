@@ -0,0 +1,333 @@
+/**
+ * Copyright (c) 2013, Tim Mahoney (tim.ivan.mahoney@gmail.com)
+ * 
+ * LICENSE: Do what you want with it.
+ */
+
+package com.timahoney.urlimage;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * A pool of bitmaps that are no longer used and can be decoded into again.
+ * This is a singleton class, so call {@link #getInstance} to get the instance.
+ * <p>
+ * Images removed from the {@link UrlImageCache} are put into this pool, and
+ * {@link UrlImageRequest} decodes new images into them using
+ * {@link android.graphics.BitmapFactory.Options#inBitmap}. This avoids
+ * allocating a new bitmap for every image, which causes garbage collections
+ * while scrolling.
+ * <p>
+ * Only bitmaps that the library knows are no longer used are put into the
+ * pool. {@link UrlImageView} retains the image it shows with
+ * {@link #retain(Bitmap)} and releases it with {@link #release(Bitmap)} once
+ * it shows another one. Retaining and releasing don't block, so the view can
+ * do it while drawing even if another thread is decoding or caching images.
+ * Every retain must be matched by a release, or the bitmap is kept in memory
+ * for good. A bitmap that was handed to any other code, through
+ * {@link UrlImageCache#getImage(String)}, a delegate or a
+ * {@link UrlImageFuture}, is never put into the pool, since we can't know when
+ * it stops being used. Bitmaps are never recycled, only dropped, so a bitmap
+ * that is still drawn somewhere stays valid.
+ */
+public class UrlImageBitmapPool {
+	private static final int DEFAULT_MAX_SIZE = 8 * 1024 * 1024;
+
+	private static UrlImageBitmapPool sInstance;
+
+	private TreeMap<Integer, LinkedList<Bitmap>> mBuckets;
+	private ConcurrentHashMap<Bitmap, Integer> mRetainCounts;
+	private Set<Bitmap> mEvicted;
+	private WeakHashMap<Bitmap, Boolean> mShared;
+	private int mSize;
+	private int mMaxSize;
+	private int mHitCount;
+	private int mMissCount;
+
+	/**
+	 * @return the shared instance of the bitmap pool.
+	 */
+	public static synchronized UrlImageBitmapPool getInstance() {
+		if (sInstance == null)
+			sInstance = new UrlImageBitmapPool();
+
+		return sInstance;
+	}
+
+	private UrlImageBitmapPool() {
+		mBuckets = new TreeMap<Integer, LinkedList<Bitmap>>();
+		mRetainCounts = new ConcurrentHashMap<Bitmap, Integer>();
+		mEvicted = Collections.newSetFromMap(new ConcurrentHashMap<Bitmap, Boolean>());
+		mShared = new WeakHashMap<Bitmap, Boolean>();
+		mMaxSize = DEFAULT_MAX_SIZE;
+	}
+
+	/**
+	 * @return true if bitmaps can be decoded into on this version of Android.
+	 */
+	static boolean isSupported() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+	}
+
+	/**
+	 * Finds a bitmap that an image of a given size can be decoded into. The
+	 * bitmap is removed from the pool.
+	 * 
+	 * @param width
+	 *            the width of the image that will be decoded.
+	 * @param height
+	 *            the height of the image that will be decoded.
+	 * @param config
+	 *            the config of the image that will be decoded.
+	 * @return a bitmap to decode into, or null if there is none.
+	 */
+	public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+		Bitmap bitmap = null;
+		if (isSupported() && width > 0 && height > 0 && config != null)
+			bitmap = findBitmap(width, height, config);
+
+		if (bitmap == null) {
+			mMissCount++;
+		} else {
+			mHitCount++;
+			mSize -= getByteCount(bitmap);
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Removes a matching bitmap from its bucket. Since KitKat, any bitmap with
+	 * enough bytes can be reused, but we don't want to waste more than half of
+	 * a bitmap. Before that, the size must match exactly.
+	 * 
+	 * @param width
+	 *            the width of the image that will be decoded.
+	 * @param height
+	 *            the height of the image that will be decoded.
+	 * @param config
+	 *            the config of the image that will be decoded.
+	 * @return a bitmap to decode into, or null if there is none.
+	 */
+	private Bitmap findBitmap(int width, int height, Bitmap.Config config) {
+		int needed = width * height * getBytesPerPixel(config);
+		boolean anySize = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+		Map<Integer, LinkedList<Bitmap>> candidates = anySize ? mBuckets.subMap(needed, true,
+				needed * 2, true) : mBuckets.subMap(needed, true, needed, true);
+
+		for (Map.Entry<Integer, LinkedList<Bitmap>> bucket : candidates.entrySet()) {
+			Iterator<Bitmap> iterator = bucket.getValue().iterator();
+			while (iterator.hasNext()) {
+				Bitmap bitmap = iterator.next();
+				if (bitmap.getConfig() != config)
+					continue;
+				if (mRetainCounts.containsKey(bitmap) || mShared.containsKey(bitmap))
+					continue;
+				if (!anySize && (bitmap.getWidth() != width || bitmap.getHeight() != height))
+					continue;
+
+				iterator.remove();
+				if (bucket.getValue().isEmpty())
+					mBuckets.remove(bucket.getKey());
+				return bitmap;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Puts a bitmap that is no longer cached into the pool. If the bitmap is
+	 * still being used, then it will be put into the pool once it is
+	 * released. A shared bitmap is never put into the pool.
+	 * 
+	 * @param bitmap
+	 *            the bitmap to reuse.
+	 */
+	public synchronized void put(Bitmap bitmap) {
+		if (!isSupported() || bitmap == null || !bitmap.isMutable() || bitmap.isRecycled())
+			return;
+
+		if (mShared.containsKey(bitmap))
+			return;
+
+		// Mark the bitmap before checking whether it's retained. Whoever
+		// takes the mark away first, this or the last release, pools it.
+		mEvicted.add(bitmap);
+		if (mRetainCounts.containsKey(bitmap) || !mEvicted.remove(bitmap))
+			return;
+
+		int size = getByteCount(bitmap);
+		if (size > mMaxSize)
+			return;
+
+		LinkedList<Bitmap> bucket = mBuckets.get(size);
+		if (bucket == null) {
+			bucket = new LinkedList<Bitmap>();
+			mBuckets.put(size, bucket);
+		}
+		bucket.add(bitmap);
+		mSize += size;
+
+		trimToSize(mMaxSize);
+	}
+
+	/**
+	 * Marks a bitmap as being used, so that it won't be decoded into. This
+	 * doesn't block.
+	 * 
+	 * @param bitmap
+	 *            the bitmap that is being used. May be null.
+	 */
+	public void retain(Bitmap bitmap) {
+		if (bitmap == null)
+			return;
+
+		while (true) {
+			Integer count = mRetainCounts.get(bitmap);
+			if (count == null) {
+				if (mRetainCounts.putIfAbsent(bitmap, 1) == null)
+					return;
+			} else if (mRetainCounts.replace(bitmap, count, count + 1)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Marks a bitmap as no longer being used by someone who called
+	 * {@link #retain(Bitmap)}. If the bitmap has been removed from the cache
+	 * and nobody else is using it, then it is put into the pool. Otherwise
+	 * this doesn't block.
+	 * 
+	 * @param bitmap
+	 *            the bitmap that is no longer used. May be null.
+	 */
+	public void release(Bitmap bitmap) {
+		if (bitmap == null)
+			return;
+
+		while (true) {
+			Integer count = mRetainCounts.get(bitmap);
+			if (count == null)
+				return;
+			if (count > 1) {
+				if (mRetainCounts.replace(bitmap, count, count - 1))
+					return;
+			} else if (mRetainCounts.remove(bitmap, count)) {
+				break;
+			}
+		}
+
+		if (mEvicted.remove(bitmap))
+			put(bitmap);
+	}
+
+	/**
+	 * Marks a bitmap as handed to code that may keep using it for as long as
+	 * it likes, so that it is never decoded into.
+	 * 
+	 * @param bitmap
+	 *            the bitmap that was handed out. May be null.
+	 */
+	synchronized void share(Bitmap bitmap) {
+		if (bitmap == null)
+			return;
+
+		mShared.put(bitmap, Boolean.TRUE);
+		mEvicted.remove(bitmap);
+	}
+
+	/**
+	 * Removes the largest bitmaps until the pool holds at most the given
+	 * amount of bytes. They are left for the garbage collector rather than
+	 * recycled, in case something still draws them.
+	 * 
+	 * @param maxSize
+	 *            the amount of bytes to trim the pool down to.
+	 */
+	private void trimToSize(int maxSize) {
+		while (mSize > maxSize && !mBuckets.isEmpty()) {
+			Map.Entry<Integer, LinkedList<Bitmap>> largest = mBuckets.lastEntry();
+			largest.getValue().removeFirst();
+			if (largest.getValue().isEmpty())
+				mBuckets.remove(largest.getKey());
+			mSize -= largest.getKey();
+		}
+	}
+
+	/**
+	 * Sets the maximum amount of bytes the pooled bitmaps may use.
+	 * 
+	 * @param maxSize
+	 *            the maximum amount of bytes for the pooled bitmaps.
+	 */
+	public synchronized void setMaxSize(int maxSize) {
+		if (maxSize < 0)
+			throw new IllegalArgumentException("The maximum size of a UrlImageBitmapPool can't be negative.");
+
+		mMaxSize = maxSize;
+		trimToSize(mMaxSize);
+	}
+
+	/**
+	 * Removes all the bitmaps from the pool.
+	 */
+	public synchronized void clear() {
+		trimToSize(0);
+	}
+
+	/**
+	 * @return the amount of times a bitmap was found to decode into.
+	 */
+	public synchronized int getHitCount() {
+		return mHitCount;
+	}
+
+	/**
+	 * @return the amount of times no bitmap was found to decode into.
+	 */
+	public synchronized int getMissCount() {
+		return mMissCount;
+	}
+
+	/**
+	 * @return the amount of bytes held by the pooled bitmaps.
+	 */
+	public synchronized int getSize() {
+		return mSize;
+	}
+
+	/**
+	 * @param bitmap
+	 *            the bitmap to measure.
+	 * @return the amount of bytes allocated for the pixels of the bitmap.
+	 */
+	static int getByteCount(Bitmap bitmap) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+			return bitmap.getAllocationByteCount();
+
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	/**
+	 * @param config
+	 *            the config of a bitmap.
+	 * @return the amount of bytes a pixel uses with the config.
+	 */
+	static int getBytesPerPixel(Bitmap.Config config) {
+		if (config == Bitmap.Config.ALPHA_8)
+			return 1;
+		if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444)
+			return 2;
+		return 4;
+	}
+}
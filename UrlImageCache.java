@@ -6,9 +6,15 @@
 
 package com.timahoney.urlimage;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import android.graphics.Bitmap;
 
@@ -19,15 +25,54 @@ import android.graphics.Bitmap;
  * You can add images to the cache using {@link #addImage(Bitmap, String)}. You
  * can get a cached image using {@link #getImage(String)}.
  * <p>
- * Note that this will only store images in RAM, not in any persistent storage.
+ * The cache is limited by the number of bytes held by its bitmaps. You can
+ * change the limit using {@link #setMaxSize(int)}. When the limit is reached,
+ * the least recently used images are removed first.
+ * <p>
+ * Reading from the cache never blocks. Hits are recorded in a small buffer that
+ * is applied to the eviction order the next time an image is added or removed,
+ * so the order is only approximately the order of access.
+ * <p>
+ * An image can be added with the time it expires, after which
+ * {@link #isExpired(String)} returns true. The image is still returned by
+ * {@link #getImage(String)}, but it should be checked with the server again.
+ * <p>
+ * The same URL can be cached at several target sizes and configs, using a
+ * {@link UrlImageCacheKey} for each. The methods that take a URL use the key of
+ * the image at its original size. The cache keeps track of the keys of each
+ * URL, so {@link #findVariant(String, int, int)} can find a larger image to
+ * scale down when an image isn't cached at the size needed.
+ * <p>
+ * Images removed from the cache go into the {@link UrlImageBitmapPool} to be
+ * decoded into again, unless they were returned by {@link #getImage(String)}.
+ * Those may still be used by whoever asked for them, so they are left alone.
+ * <p>
+ * By default, this will only store images in RAM. To also keep the original
+ * bytes of downloaded images in persistent storage, give the cache a
+ * {@link UrlImageDiskCache} using {@link #setDiskCache(UrlImageDiskCache)}.
  */
 public class UrlImageCache {
-	private static final int MAX_LOCAL_PIXEL_COUNT = 5000000;
+	private static final int DEFAULT_MAX_SIZE = 20 * 1024 * 1024;
+	private static final int READ_BUFFER_SIZE = 128;
+
+	/**
+	 * The mark of an image that a reader got, which stays until the image is
+	 * removed. Smaller marks count the readers still checking the image.
+	 */
+	private static final int SHARED = Integer.MAX_VALUE;
 
 	private static UrlImageCache sInstance;
 
-	private HashMap<String, Bitmap> mCache;
-	private Queue<String> mCacheQueue;
+	private ConcurrentHashMap<UrlImageCacheKey, Bitmap> mImages;
+	private ConcurrentHashMap<UrlImageCacheKey, Long> mExpirations;
+	private ConcurrentHashMap<Bitmap, Integer> mSharedImages;
+	private LinkedHashMap<UrlImageCacheKey, Bitmap> mCache;
+	private HashMap<String, List<UrlImageCacheKey>> mVariants;
+	private AtomicReferenceArray<UrlImageCacheKey> mReadBuffer;
+	private AtomicInteger mReadCount;
+	private int mSize;
+	private int mMaxSize;
+	private volatile UrlImageDiskCache mDiskCache;
 
 	/**
 	 * @return the shared instance of the image cache.
@@ -40,22 +85,181 @@ public class UrlImageCache {
 	}
 
 	private UrlImageCache() {
-		mCache = new HashMap<String, Bitmap>();
-		mCacheQueue = new LinkedList<String>();
+		this(DEFAULT_MAX_SIZE);
 	}
 
 	/**
-	 * Retrieves an image from the cache.
+	 * Creates a cache that will hold at most the given amount of bytes.
+	 * 
+	 * @param maxSize
+	 *            the maximum amount of bytes held by the cached images.
+	 */
+	private UrlImageCache(int maxSize) {
+
+		// Readers only look at the concurrent map. Writers keep the access
+		// ordered map in sync with it while holding the lock, so the eldest
+		// entry is always the least recently used one.
+		mImages = new ConcurrentHashMap<UrlImageCacheKey, Bitmap>();
+		mExpirations = new ConcurrentHashMap<UrlImageCacheKey, Long>();
+		mSharedImages = new ConcurrentHashMap<Bitmap, Integer>();
+		mCache = new LinkedHashMap<UrlImageCacheKey, Bitmap>(16, 0.75f, true);
+		mVariants = new HashMap<String, List<UrlImageCacheKey>>();
+		mReadBuffer = new AtomicReferenceArray<UrlImageCacheKey>(READ_BUFFER_SIZE);
+		mReadCount = new AtomicInteger();
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * Retrieves an image from the cache. This does not block, even if another
+	 * thread is adding images to the cache. The image will never be decoded
+	 * into, so it can be kept for as long as you like.
 	 * 
 	 * @param url
 	 *            the URL of the image to retrieve.
 	 * @return the image for the specified URL. Null if not found.
 	 */
-	public synchronized Bitmap getImage(String url) {
-		if (url == null)
+	public Bitmap getImage(String url) {
+		return url == null ? null : getImage(new UrlImageCacheKey(url));
+	}
+
+	/**
+	 * Retrieves an image from the cache. This does not block, even if another
+	 * thread is adding images to the cache. The image will never be decoded
+	 * into, so it can be kept for as long as you like.
+	 * 
+	 * @param key
+	 *            the key of the image to retrieve.
+	 * @return the image for the key. Null if not found.
+	 */
+	public Bitmap getImage(UrlImageCacheKey key) {
+		if (key == null)
+			return null;
+
+		Bitmap image = mImages.get(key);
+		if (image == null)
+			return null;
+
+		// An image that was handed out before is never pooled, so it can be
+		// handed out again without writing anything.
+		Integer mark = mSharedImages.get(image);
+		if (mark != null && mark == SHARED) {
+			recordRead(key);
+			return image;
+		}
+
+		// Mark the image before checking that it's still cached. Images are
+		// removed before they are pooled, so if it's still here, it will be
+		// seen as shared when it is removed. Marks are counted, so a reader
+		// that was too late can't take away the mark of one that wasn't.
+		addShare(image, 1);
+		if (mImages.get(key) != image) {
+			addShare(image, -1);
+			return null;
+		}
+
+		addShare(image, SHARED);
+		recordRead(key);
+		return image;
+	}
+
+	/**
+	 * Changes how many readers have marked an image as shared, without
+	 * blocking. Once an image is marked as {@link #SHARED}, that mark stays
+	 * until the image is removed.
+	 * 
+	 * @param image
+	 *            the image.
+	 * @param delta
+	 *            1 to add a mark, -1 to take one back, or {@link #SHARED} to
+	 *            turn the mark of a reader that got the image into one that
+	 *            stays.
+	 */
+	private void addShare(Bitmap image, int delta) {
+		while (true) {
+			Integer count = mSharedImages.get(image);
+			if (count == null) {
+
+				// If the mark was already taken away, the image was removed
+				// and mustn't be marked again.
+				if (delta <= 0 || delta == SHARED
+						|| mSharedImages.putIfAbsent(image, delta) == null)
+					return;
+			} else if (count == SHARED) {
+				return;
+			} else if (delta == SHARED) {
+				if (mSharedImages.replace(image, count, SHARED))
+					return;
+			} else if (count + delta <= 0) {
+				if (mSharedImages.remove(image, count))
+					return;
+			} else if (mSharedImages.replace(image, count, count + delta)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Retrieves an image from the cache and retains it in the
+	 * {@link UrlImageBitmapPool}, so that it isn't decoded into even if it is
+	 * removed from the cache right away. The caller must release it.
+	 * 
+	 * @param key
+	 *            the key of the image to retrieve.
+	 * @return the retained image for the key. Null if not found.
+	 */
+	Bitmap retainImage(UrlImageCacheKey key) {
+		if (key == null)
+			return null;
+
+		Bitmap image = mImages.get(key);
+		if (image == null)
 			return null;
 
-		return mCache.get(url);
+		// Like getImage, retain first and then check that the image wasn't
+		// pooled in between.
+		UrlImageBitmapPool pool = UrlImageBitmapPool.getInstance();
+		pool.retain(image);
+		if (mImages.get(key) != image) {
+			pool.release(image);
+			return null;
+		}
+
+		recordRead(key);
+		return image;
+	}
+
+	/**
+	 * @param key
+	 *            the key of an image.
+	 * @return true if the image is cached.
+	 */
+	boolean hasImage(UrlImageCacheKey key) {
+		return key != null && mImages.containsKey(key);
+	}
+
+	/**
+	 * Remembers that an image was read so that it can be moved to the most
+	 * recently used end of the cache later. If the buffer is full, then the
+	 * oldest reads are overwritten.
+	 * 
+	 * @param key
+	 *            the key of the image that was read.
+	 */
+	private void recordRead(UrlImageCacheKey key) {
+		int index = mReadCount.getAndIncrement() & (READ_BUFFER_SIZE - 1);
+		mReadBuffer.lazySet(index, key);
+	}
+
+	/**
+	 * Applies the buffered reads to the eviction order. This must be called
+	 * while holding the lock.
+	 */
+	private void drainReads() {
+		for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+			UrlImageCacheKey key = mReadBuffer.getAndSet(i, null);
+			if (key != null)
+				mCache.get(key);
+		}
 	}
 
 	/**
@@ -67,78 +271,320 @@ public class UrlImageCache {
 	 * @param url
 	 *            the URL of the image.
 	 */
-	public synchronized void addImage(Bitmap image, String url) {
-		storeInMemory(image, url);
+	public void addImage(Bitmap image, String url) {
+		addImage(image, url, Long.MAX_VALUE);
 	}
 
 	/**
-	 * Stores an image in the local cache.
+	 * Adds an image to the cache that should be checked with the server again
+	 * after a given time.
 	 * 
 	 * @param image
-	 *            the image to store.
+	 *            the image to store in the cache.
 	 * @param url
 	 *            the URL of the image.
+	 * @param expires
+	 *            the time in milliseconds since the epoch when the image
+	 *            expires, or {@link Long#MAX_VALUE} if it never does.
+	 */
+	public void addImage(Bitmap image, String url, long expires) {
+		if (url != null)
+			addImage(image, new UrlImageCacheKey(url), expires);
+	}
+
+	/**
+	 * Adds an image to the cache under a key that should be checked with the
+	 * server again after a given time.
+	 * 
+	 * @param image
+	 *            the image to store in the cache.
+	 * @param key
+	 *            the key of the image.
+	 * @param expires
+	 *            the time in milliseconds since the epoch when the image
+	 *            expires, or {@link Long#MAX_VALUE} if it never does.
+	 */
+	public synchronized void addImage(Bitmap image, UrlImageCacheKey key, long expires) {
+		storeInMemory(image, key);
+		if (image == null || key == null)
+			return;
+
+		if (expires == Long.MAX_VALUE)
+			mExpirations.remove(key);
+		else
+			mExpirations.put(key, expires);
+	}
+
+	/**
+	 * @param key
+	 *            the key of an image.
+	 * @return the time in milliseconds since the epoch when the cached image
+	 *         for the key expires, or {@link Long#MAX_VALUE} if it never does.
 	 */
-	private void storeInMemory(Bitmap image, String url) {
-		if (image == null || url == null)
+	long getExpiration(UrlImageCacheKey key) {
+		Long expires = key == null ? null : mExpirations.get(key);
+		return expires == null ? Long.MAX_VALUE : expires;
+	}
+
+	/**
+	 * Finds the smallest cached image of a URL that covers a target size and
+	 * was decoded with the default configs. Only images that haven't expired
+	 * are considered.
+	 * 
+	 * @param url
+	 *            the URL of the image, without a target size.
+	 * @param width
+	 *            the target width, or 0 if the width doesn't matter.
+	 * @param height
+	 *            the target height, or 0 if the height doesn't matter.
+	 * @return the key of the image, or null if no image covers the target size.
+	 */
+	public UrlImageCacheKey findVariant(String url, int width, int height) {
+		return url == null ? null : findVariant(new UrlImageCacheKey(url, width, height));
+	}
+
+	/**
+	 * Finds the smallest cached image that covers the target size of a key and
+	 * was decoded the same way, with the same configs and transformation. Only
+	 * images that haven't expired are considered.
+	 * 
+	 * @param key
+	 *            the key of the image that is needed.
+	 * @return the key of the image, or null if no image covers the target size.
+	 */
+	public synchronized UrlImageCacheKey findVariant(UrlImageCacheKey key) {
+		List<UrlImageCacheKey> keys = key == null ? null : mVariants.get(key.getUrl());
+		int width = key == null ? 0 : key.getWidth();
+		int height = key == null ? 0 : key.getHeight();
+		if (keys == null || (width <= 0 && height <= 0))
+			return null;
+
+		UrlImageCacheKey smallest = null;
+		int smallestSize = Integer.MAX_VALUE;
+		for (UrlImageCacheKey variant : keys) {
+			if (!variant.isVariantOf(key))
+				continue;
+
+			Bitmap image = mImages.get(variant);
+			if (image == null || isExpired(variant))
+				continue;
+			if ((width > 0 && image.getWidth() < width)
+					|| (height > 0 && image.getHeight() < height))
+				continue;
+
+			int size = getByteCount(image);
+			if (size < smallestSize) {
+				smallest = variant;
+				smallestSize = size;
+			}
+		}
+		return smallest;
+	}
+
+	/**
+	 * Remembers or forgets one of the sizes a URL is cached at. This must be
+	 * called while holding the lock.
+	 * 
+	 * @param key
+	 *            the key of the image.
+	 * @param added
+	 *            true if the image was added, false if it was removed.
+	 */
+	private void updateVariants(UrlImageCacheKey key, boolean added) {
+		List<UrlImageCacheKey> keys = mVariants.get(key.getUrl());
+		if (added) {
+			if (keys == null) {
+				keys = new ArrayList<UrlImageCacheKey>(2);
+				mVariants.put(key.getUrl(), keys);
+			}
+			keys.add(key);
+		} else if (keys != null) {
+			keys.remove(key);
+			if (keys.isEmpty())
+				mVariants.remove(key.getUrl());
+		}
+	}
+
+	/**
+	 * @param url
+	 *            the URL of an image.
+	 * @return true if the cached image for the URL has expired and should be
+	 *         checked with the server again.
+	 */
+	public boolean isExpired(String url) {
+		return url != null && isExpired(new UrlImageCacheKey(url));
+	}
+
+	/**
+	 * @param key
+	 *            the key of an image.
+	 * @return true if the cached image for the key has expired and should be
+	 *         checked with the server again.
+	 */
+	public boolean isExpired(UrlImageCacheKey key) {
+		if (key == null)
+			return false;
+
+		Long expires = mExpirations.get(key);
+		return expires != null && System.currentTimeMillis() >= expires;
+	}
+
+	/**
+	 * Stores an image in the local cache.
+	 * 
+	 * @param image
+	 *            the image to store.
+	 * @param key
+	 *            the key of the image.
+	 */
+	private void storeInMemory(Bitmap image, UrlImageCacheKey key) {
+		if (image == null || key == null)
 			return;
 
-		// Hold all the local images in a queue.
-		// When space is needed, we'll remove the least recently used images.
-		// If the cache already contains the URL, then move it to the back of
-		// the queue.
-		if (!mCache.containsKey(url)) {
-			mCache.put(url, image);
-			mCacheQueue.offer(url);
-		} else {
-			mCacheQueue.remove(url);
-			mCacheQueue.offer(url);
+		// The map is kept in access order, so putting the image moves it to
+		// the most recently used end. If we replaced an older image, stop
+		// counting its bytes.
+		drainReads();
+		Bitmap previous = mCache.put(key, image);
+		mImages.put(key, image);
+		mSize += getByteCount(image);
+		if (previous == null)
+			updateVariants(key, true);
+		if (previous != null) {
+			mSize -= getByteCount(previous);
+			if (previous != image)
+				recycleImage(previous);
 		}
 
-		// Try to limit the amount of pixels in our cache.
-		if (getPixelCount() >= MAX_LOCAL_PIXEL_COUNT)
-			freeSomeSpace();
+		// Try to limit the amount of bytes in our cache.
+		if (mSize > mMaxSize)
+			trimToSize(mMaxSize);
 	}
 
 	/**
-	 * Frees some space from this image cache. You probably shouldn't need to
-	 * use this, but try it if you're having out of memory errors.
-	 */
-	public void freeSomeSpace() {
-		int pixelsToRemove = MAX_LOCAL_PIXEL_COUNT / 2;
-		int pixelsRemoved = 0;
-		for (int i = 0; (i < mCache.size()) && (pixelsRemoved < pixelsToRemove); i++) {
-			String urlToRemove = mCacheQueue.poll();
-			Bitmap removed = mCache.remove(urlToRemove);
-			pixelsRemoved += (removed.getWidth() * removed.getHeight());
+	 * Removes the least recently used images until the cache holds at most the
+	 * given amount of bytes. The removed images are put into the
+	 * {@link UrlImageBitmapPool} so they can be decoded into again.
+	 * 
+	 * @param maxSize
+	 *            the amount of bytes to trim the cache down to.
+	 */
+	private void trimToSize(int maxSize) {
+		drainReads();
+		Iterator<Map.Entry<UrlImageCacheKey, Bitmap>> iterator = mCache.entrySet().iterator();
+		while (mSize > maxSize && iterator.hasNext()) {
+			Map.Entry<UrlImageCacheKey, Bitmap> eldest = iterator.next();
+			iterator.remove();
+			mImages.remove(eldest.getKey());
+			mExpirations.remove(eldest.getKey());
+			updateVariants(eldest.getKey(), false);
+			mSize -= getByteCount(eldest.getValue());
+			recycleImage(eldest.getValue());
 		}
+	}
+
+	/**
+	 * Puts an image that was removed from the cache into the
+	 * {@link UrlImageBitmapPool}, unless it was handed out by
+	 * {@link #getImage(String)}. This must be called after the image was
+	 * removed from the concurrent map.
+	 * 
+	 * @param image
+	 *            the image that was removed.
+	 */
+	private void recycleImage(Bitmap image) {
+		if (mSharedImages.remove(image) == null)
+			UrlImageBitmapPool.getInstance().put(image);
+	}
+
+	/**
+	 * @param bitmap
+	 *            the bitmap to measure.
+	 * @return the amount of bytes allocated for the pixels of the bitmap.
+	 *         This depends on the config of the bitmap, and since KitKat, a
+	 *         bitmap that was decoded into may hold more than it shows.
+	 */
+	private static int getByteCount(Bitmap bitmap) {
+		return UrlImageBitmapPool.getByteCount(bitmap);
+	}
+
+	/**
+	 * Frees some space from this image cache. You probably shouldn't need to
+	 * use this, but try it if you're having out of memory errors. This also
+	 * empties the {@link UrlImageBitmapPool}.
+	 */
+	public synchronized void freeSomeSpace() {
+		trimToSize(mMaxSize / 2);
+		UrlImageBitmapPool.getInstance().clear();
+	}
+
+	/**
+	 * Sets the maximum amount of bytes the cached images may use. If the cache
+	 * currently holds more than this, then the least recently used images will
+	 * be removed.
+	 * 
+	 * @param maxSize
+	 *            the maximum amount of bytes for the cached images.
+	 */
+	public synchronized void setMaxSize(int maxSize) {
+		if (maxSize <= 0)
+			throw new IllegalArgumentException("The maximum size of a UrlImageCache must be positive.");
+
+		mMaxSize = maxSize;
+		trimToSize(mMaxSize);
+	}
 
-		System.gc();
+	/**
+	 * @return the maximum amount of bytes the cached images may use.
+	 */
+	public synchronized int getMaxSize() {
+		return mMaxSize;
+	}
+
+	/**
+	 * @return the amount of bytes currently used by the cached images.
+	 */
+	public synchronized int getSize() {
+		return mSize;
+	}
+
+	/**
+	 * Sets the cache used to store the original bytes of downloaded images on
+	 * disk. Images that aren't in memory will be loaded from this cache before
+	 * going to the network.
+	 * 
+	 * @param diskCache
+	 *            the disk cache to use. If null, then images will only be
+	 *            stored in memory.
+	 */
+	public void setDiskCache(UrlImageDiskCache diskCache) {
+		mDiskCache = diskCache;
 	}
 
 	/**
-	 * @return the number of pixels we have in our local cache.
+	 * @return the cache used to store images on disk. May be null.
 	 */
-	private int getPixelCount() {
-		int count = 0;
-		for (Bitmap bitmap : mCache.values())
-			count += (bitmap.getWidth() * bitmap.getHeight());
-		return count;
+	public UrlImageDiskCache getDiskCache() {
+		return mDiskCache;
 	}
 
 	/**
 	 * Clears the cache of any images. You may want to do a {@link System#gc()}
 	 * after calling this.
 	 */
-	public void clearLocalCache() {
+	public synchronized void clearLocalCache() {
 		mCache.clear();
-		mCacheQueue.clear();
+		mImages.clear();
+		mExpirations.clear();
+		mVariants.clear();
+		mSharedImages.clear();
+		mSize = 0;
 	}
 
 	/**
 	 * @return the amount of images in the local cache.
 	 */
 	public int size() {
-		return mCache.size();
+		return mImages.size();
 	}
 }
@@ -0,0 +1,177 @@
+/**
+ * Copyright (c) 2013, Tim Mahoney (tim.ivan.mahoney@gmail.com)
+ * 
+ * LICENSE: Do what you want with it.
+ */
+
+package com.timahoney.urlimage;
+
+import android.graphics.Bitmap;
+
+/**
+ * The key under which an image is stored in the {@link UrlImageCache}. The same
+ * URL can be cached several times: at different target sizes, decoded with
+ * different configs, or with a transformation applied to it. Target sizes are
+ * rounded up to a multiple of {@link UrlImageRequest#SIZE_BUCKET} pixels, so
+ * views of nearly the same size share an image.
+ * <p>
+ * Keys are immutable and compare all of their parts, so they can be used in
+ * hash maps from any thread.
+ */
+public final class UrlImageCacheKey {
+	private final String mUrl;
+	private final int mWidth;
+	private final int mHeight;
+	private final Bitmap.Config mConfig;
+	private final Bitmap.Config mOpaqueConfig;
+	private final String mTransformation;
+	private final int mHashCode;
+
+	/**
+	 * Creates the key of an image at its original size, decoded with the
+	 * default configs.
+	 * 
+	 * @param url
+	 *            the URL of the image. May not be null.
+	 */
+	public UrlImageCacheKey(String url) {
+		this(url, 0, 0);
+	}
+
+	/**
+	 * Creates the key of an image for a target size, decoded with the default
+	 * configs.
+	 * 
+	 * @param url
+	 *            the URL of the image. May not be null.
+	 * @param width
+	 *            the target width, or 0 if the width doesn't matter.
+	 * @param height
+	 *            the target height, or 0 if the height doesn't matter.
+	 */
+	public UrlImageCacheKey(String url, int width, int height) {
+		this(url, width, height, Bitmap.Config.ARGB_8888, Bitmap.Config.ARGB_8888, null);
+	}
+
+	/**
+	 * Creates the key of an image.
+	 * 
+	 * @param url
+	 *            the URL of the image. May not be null.
+	 * @param width
+	 *            the target width, or 0 if the width doesn't matter.
+	 * @param height
+	 *            the target height, or 0 if the height doesn't matter.
+	 * @param config
+	 *            the config the image is decoded with. May not be null.
+	 * @param opaqueConfig
+	 *            the config the image is decoded with if it can't be
+	 *            transparent. May not be null.
+	 * @param transformation
+	 *            an ID for a transformation applied to the image after it is
+	 *            decoded, or null if there is none.
+	 */
+	public UrlImageCacheKey(String url, int width, int height, Bitmap.Config config,
+			Bitmap.Config opaqueConfig, String transformation) {
+		if (url == null)
+			throw new IllegalArgumentException("The URL of a UrlImageCacheKey can't be null.");
+		if (config == null || opaqueConfig == null)
+			throw new IllegalArgumentException("The configs of a UrlImageCacheKey can't be null.");
+
+		mUrl = url;
+		mWidth = UrlImageRequest.getBucketSize(width);
+		mHeight = UrlImageRequest.getBucketSize(height);
+		mConfig = config;
+		mOpaqueConfig = opaqueConfig;
+		mTransformation = transformation;
+
+		int hashCode = mUrl.hashCode();
+		hashCode = 31 * hashCode + mWidth;
+		hashCode = 31 * hashCode + mHeight;
+		hashCode = 31 * hashCode + mConfig.hashCode();
+		hashCode = 31 * hashCode + mOpaqueConfig.hashCode();
+		hashCode = 31 * hashCode + (mTransformation == null ? 0 : mTransformation.hashCode());
+		mHashCode = hashCode;
+	}
+
+	/**
+	 * @return the URL of the image.
+	 */
+	public String getUrl() {
+		return mUrl;
+	}
+
+	/**
+	 * @return the target width rounded up to its bucket, or 0 if the width
+	 *         doesn't matter.
+	 */
+	public int getWidth() {
+		return mWidth;
+	}
+
+	/**
+	 * @return the target height rounded up to its bucket, or 0 if the height
+	 *         doesn't matter.
+	 */
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * @return the config the image is decoded with.
+	 */
+	public Bitmap.Config getConfig() {
+		return mConfig;
+	}
+
+	/**
+	 * @return the config the image is decoded with if it can't be transparent.
+	 */
+	public Bitmap.Config getOpaqueConfig() {
+		return mOpaqueConfig;
+	}
+
+	/**
+	 * @return the ID of the transformation applied to the image, or null if
+	 *         there is none.
+	 */
+	public String getTransformation() {
+		return mTransformation;
+	}
+
+	/**
+	 * @param other
+	 *            another key.
+	 * @return true if both keys are for the same URL, decoded the same way,
+	 *         so one can be scaled to the size of the other.
+	 */
+	boolean isVariantOf(UrlImageCacheKey other) {
+		return mUrl.equals(other.mUrl) && mConfig == other.mConfig
+				&& mOpaqueConfig == other.mOpaqueConfig
+				&& (mTransformation == null ? other.mTransformation == null
+						: mTransformation.equals(other.mTransformation));
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o == this)
+			return true;
+		if (!(o instanceof UrlImageCacheKey))
+			return false;
+
+		UrlImageCacheKey other = (UrlImageCacheKey) o;
+		return mHashCode == other.mHashCode && mWidth == other.mWidth
+				&& mHeight == other.mHeight && isVariantOf(other);
+	}
+
+	@Override
+	public int hashCode() {
+		return mHashCode;
+	}
+
+	@Override
+	public String toString() {
+		return mUrl + " " + mWidth + "x" + mHeight + " " + mConfig + "/" + mOpaqueConfig
+				+ (mTransformation == null ? "" : " " + mTransformation);
+	}
+}
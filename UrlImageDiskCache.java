@@ -0,0 +1,841 @@
+/**
+ * Copyright (c) 2013, Tim Mahoney (tim.ivan.mahoney@gmail.com)
+ * 
+ * LICENSE: Do what you want with it.
+ */
+
+package com.timahoney.urlimage;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * A cache that stores the original bytes of downloaded images in a directory.
+ * To use it, create an instance and give it to
+ * {@link UrlImageCache#setDiskCache(UrlImageDiskCache)}.
+ * <p>
+ * The cache is limited to a maximum amount of bytes. When the limit is
+ * reached, the least recently used images are deleted first.
+ * <p>
+ * The cache keeps its index in a binary file of fixed size records, arranged
+ * as a hash table and accessed through a {@link MappedByteBuffer}. Opening the
+ * cache only maps the file, so lookups work right away no matter how many
+ * images are cached. Images are written to a temporary file first and then
+ * renamed, and their record is only written once the rename succeeded, so a
+ * partially written image will never be read.
+ * <p>
+ * An image can be stored with the {@link Validators} from the HTTP response it
+ * was downloaded with. They are kept in a small file next to the image, so that
+ * {@link UrlImageRequest} can tell whether the image is still fresh and, if it
+ * isn't, ask the server whether it has changed instead of downloading it again.
+ */
+public class UrlImageDiskCache {
+	private static final String DEBUG_TAG = "UrlImageDiskCache";
+
+	private static final String INDEX_FILE = "index";
+	private static final String INDEX_FILE_TEMP = "index.tmp";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String VALIDATORS_SUFFIX = ".meta";
+
+	private static final int INDEX_MAGIC = 0x55494458;
+	private static final int INDEX_VERSION = 1;
+	private static final int INITIAL_CAPACITY = 1024;
+
+	// The header of the index: magic, version, capacity, count, occupied slots
+	// and the total size of the images.
+	private static final int HEADER_SIZE = 32;
+	private static final int HEADER_MAGIC = 0;
+	private static final int HEADER_VERSION = 4;
+	private static final int HEADER_CAPACITY = 8;
+	private static final int HEADER_COUNT = 12;
+	private static final int HEADER_OCCUPIED = 16;
+	private static final int HEADER_SIZE_BYTES = 24;
+
+	// Each record holds a state, the MD5 hash of the URL, which is also the
+	// name of the image file, the size of the file and the last access time.
+	private static final int RECORD_SIZE = 40;
+	private static final int RECORD_STATE = 0;
+	private static final int RECORD_HASH = 4;
+	private static final int RECORD_LENGTH = 24;
+	private static final int RECORD_ACCESS = 32;
+	private static final int HASH_LENGTH = 16;
+
+	private static final int STATE_EMPTY = 0;
+	private static final int STATE_USED = 1;
+	private static final int STATE_REMOVED = 2;
+
+	private final File mDirectory;
+	private final long mMaxSize;
+	private final String mSession;
+	private final AtomicInteger mTempCount;
+
+	private MappedByteBuffer mIndex;
+	private int mCapacity;
+
+	/**
+	 * What is known about the freshness of a cached image, taken from the
+	 * headers of the HTTP response it was downloaded with.
+	 */
+	public static class Validators {
+		private final String mEtag;
+		private final long mLastModified;
+		private final long mExpires;
+
+		/**
+		 * @param etag
+		 *            the entity tag of the image, or null if there is none.
+		 * @param lastModified
+		 *            the time the image was last modified in milliseconds
+		 *            since the epoch, or 0 if it isn't known.
+		 * @param expires
+		 *            the time in milliseconds since the epoch until which the
+		 *            image may be used without asking the server.
+		 */
+		public Validators(String etag, long lastModified, long expires) {
+			mEtag = etag;
+			mLastModified = lastModified;
+			mExpires = expires;
+		}
+
+		/**
+		 * @return the entity tag of the image, or null if there is none.
+		 */
+		public String getEtag() {
+			return mEtag;
+		}
+
+		/**
+		 * @return the time the image was last modified in milliseconds since
+		 *         the epoch, or 0 if it isn't known.
+		 */
+		public long getLastModified() {
+			return mLastModified;
+		}
+
+		/**
+		 * @return the time in milliseconds since the epoch until which the
+		 *         image may be used without asking the server.
+		 */
+		public long getExpires() {
+			return mExpires;
+		}
+
+		/**
+		 * @return true if the image may still be used without asking the
+		 *         server.
+		 */
+		public boolean isFresh() {
+			return System.currentTimeMillis() < mExpires;
+		}
+
+		/**
+		 * @return true if the server can be asked whether the image has
+		 *         changed.
+		 */
+		public boolean canRevalidate() {
+			return mEtag != null || mLastModified > 0;
+		}
+	}
+
+	/**
+	 * Creates a disk cache in a directory. If the directory already holds a
+	 * cache, then it will be reused.
+	 * 
+	 * @param directory
+	 *            the directory to store the images in. This directory should
+	 *            only be used by this cache. May not be null.
+	 * @param maxSize
+	 *            the maximum amount of bytes the cached images may use.
+	 */
+	public UrlImageDiskCache(File directory, long maxSize) {
+		if (directory == null)
+			throw new RuntimeException("You must provide a directory when creating a UrlImageDiskCache.");
+		if (maxSize <= 0)
+			throw new IllegalArgumentException("The maximum size of a UrlImageDiskCache must be positive.");
+
+		mDirectory = directory;
+		mMaxSize = maxSize;
+		mSession = Long.toString(System.nanoTime(), 36);
+		mTempCount = new AtomicInteger();
+
+		if (!mDirectory.isDirectory() && !mDirectory.mkdirs())
+			Log.e(DEBUG_TAG, "Could not create the directory for UrlImageDiskCache: " + directory);
+
+		openIndex();
+	}
+
+	/**
+	 * Opens the cached image for a URL.
+	 * 
+	 * @param url
+	 *            the URL of the image.
+	 * @return a stream with the original bytes of the image. The caller must
+	 *         close it. Null if the image isn't cached.
+	 */
+	public synchronized InputStream get(String url) {
+		if (url == null || mIndex == null)
+			return null;
+
+		byte[] hash = getHash(url);
+		int slot = findSlot(hash);
+		if (slot < 0)
+			return null;
+
+		try {
+			InputStream stream = new FileInputStream(getFile(hash));
+			mIndex.putLong(getRecordOffset(slot) + RECORD_ACCESS, System.currentTimeMillis());
+			return stream;
+		} catch (FileNotFoundException e) {
+
+			// Someone deleted the file behind our back. Forget about it.
+			Log.w(DEBUG_TAG, "Missing file for cached image at " + url);
+			removeSlot(slot);
+			return null;
+		}
+	}
+
+	/**
+	 * @param url
+	 *            the URL of an image.
+	 * @return true if the image is cached.
+	 */
+	public synchronized boolean contains(String url) {
+		if (url == null || mIndex == null)
+			return false;
+
+		return findSlot(getHash(url)) >= 0;
+	}
+
+	/**
+	 * Reads the validators stored with the cached image for a URL.
+	 * 
+	 * @param url
+	 *            the URL of the image.
+	 * @return the validators of the image, or null if the image isn't cached
+	 *         or was stored without any.
+	 */
+	public Validators getValidators(String url) {
+		if (url == null)
+			return null;
+
+		// The file is always replaced by renaming, so it can be read without
+		// holding the lock.
+		File file = getValidatorsFile(getHash(url));
+		if (!file.exists())
+			return null;
+
+		DataInputStream input = null;
+		try {
+			input = new DataInputStream(new FileInputStream(file));
+			String etag = input.readUTF();
+			long lastModified = input.readLong();
+			long expires = input.readLong();
+			return new Validators(etag.length() == 0 ? null : etag, lastModified, expires);
+		} catch (IOException e) {
+			Log.w(DEBUG_TAG, "Could not read validators for " + url, e);
+			return null;
+		} finally {
+			closeQuietly(input);
+		}
+	}
+
+	/**
+	 * Replaces the validators of a cached image, for example after the server
+	 * said the image hasn't changed. Nothing happens if the image isn't cached.
+	 * 
+	 * @param url
+	 *            the URL of the image.
+	 * @param validators
+	 *            the new validators of the image.
+	 */
+	public void setValidators(String url, Validators validators) {
+		if (url == null || validators == null)
+			return;
+
+		byte[] hash = getHash(url);
+		File temp = writeValidators(hash, validators);
+		if (temp == null)
+			return;
+
+		synchronized (this) {
+			if (mIndex == null || findSlot(hash) < 0 || !temp.renameTo(getValidatorsFile(hash)))
+				temp.delete();
+		}
+	}
+
+	/**
+	 * Stores the bytes of an image. The bytes are copied to a temporary file
+	 * without holding the cache's lock, so other threads can keep reading the
+	 * cache while a slow download is written.
+	 * 
+	 * @param url
+	 *            the URL of the image.
+	 * @param data
+	 *            the stream of the original image bytes. This won't be closed.
+	 * @return true if the image was stored.
+	 */
+	public boolean put(String url, InputStream data) {
+		return put(url, data, null);
+	}
+
+	/**
+	 * Stores the bytes of an image along with its validators. The bytes are
+	 * copied to a temporary file without holding the cache's lock, so other
+	 * threads can keep reading the cache while a slow download is written.
+	 * 
+	 * @param url
+	 *            the URL of the image.
+	 * @param data
+	 *            the stream of the original image bytes. This won't be closed.
+	 * @param validators
+	 *            the validators of the image. May be null.
+	 * @return true if the image was stored.
+	 */
+	public boolean put(String url, InputStream data, Validators validators) {
+		if (url == null || data == null)
+			return false;
+
+		byte[] hash = getHash(url);
+		File temp = createTempFile(hash);
+		OutputStream output = null;
+		try {
+			output = new FileOutputStream(temp);
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = data.read(buffer)) != -1)
+				output.write(buffer, 0, count);
+			output.close();
+			output = null;
+		} catch (IOException e) {
+			Log.w(DEBUG_TAG, "Could not write cached image for " + url, e);
+			closeQuietly(output);
+			temp.delete();
+			return false;
+		}
+
+		File validatorsTemp = null;
+		if (validators != null) {
+			validatorsTemp = writeValidators(hash, validators);
+			if (validatorsTemp == null) {
+				temp.delete();
+				return false;
+			}
+		}
+
+		return commit(hash, temp, validatorsTemp);
+	}
+
+	/**
+	 * Writes validators to a temporary file.
+	 * 
+	 * @param hash
+	 *            the hash of the URL of the image.
+	 * @param validators
+	 *            the validators to write.
+	 * @return the temporary file, or null if it couldn't be written.
+	 */
+	private File writeValidators(byte[] hash, Validators validators) {
+		File temp = createTempFile(hash);
+		DataOutputStream output = null;
+		try {
+			output = new DataOutputStream(new FileOutputStream(temp));
+			output.writeUTF(validators.getEtag() == null ? "" : validators.getEtag());
+			output.writeLong(validators.getLastModified());
+			output.writeLong(validators.getExpires());
+			output.close();
+			output = null;
+			return temp;
+		} catch (IOException e) {
+			Log.w(DEBUG_TAG, "Could not write validators " + temp, e);
+			closeQuietly(output);
+			temp.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * @param hash
+	 *            the hash of the URL of the image.
+	 * @return a new temporary file for the image that no other thread uses.
+	 */
+	private File createTempFile(byte[] hash) {
+		return new File(mDirectory, toHex(hash) + "." + mSession + "-"
+				+ mTempCount.incrementAndGet() + TEMP_SUFFIX);
+	}
+
+	/**
+	 * Moves a completely written temporary file into place and records it in
+	 * the index.
+	 * 
+	 * @param hash
+	 *            the hash of the URL of the image.
+	 * @param temp
+	 *            the temporary file holding the image.
+	 * @param validatorsTemp
+	 *            the temporary file holding the validators of the image, or
+	 *            null if there are none.
+	 * @return true if the entry was committed.
+	 */
+	private synchronized boolean commit(byte[] hash, File temp, File validatorsTemp) {
+		File file = getFile(hash);
+		if (mIndex == null || !temp.renameTo(file)) {
+			Log.w(DEBUG_TAG, "Could not commit cached image " + file);
+			temp.delete();
+			if (validatorsTemp != null)
+				validatorsTemp.delete();
+			return false;
+		}
+
+		// Validators of an older copy of the image don't apply anymore.
+		File validatorsFile = getValidatorsFile(hash);
+		if (validatorsTemp == null || !validatorsTemp.renameTo(validatorsFile)) {
+			if (validatorsTemp != null)
+				validatorsTemp.delete();
+			validatorsFile.delete();
+		}
+
+		long length = file.length();
+		int slot = findSlot(hash);
+		if (slot >= 0) {
+			int offset = getRecordOffset(slot);
+			setTotalSize(getTotalSize() - mIndex.getLong(offset + RECORD_LENGTH) + length);
+			mIndex.putLong(offset + RECORD_LENGTH, length);
+			mIndex.putLong(offset + RECORD_ACCESS, System.currentTimeMillis());
+		} else {
+
+			// Keep the table at most half full so probing stays short. If it's
+			// mostly full of removed records, then rebuilding at the same
+			// capacity is enough.
+			if (2 * (mIndex.getInt(HEADER_OCCUPIED) + 1) > mCapacity) {
+				boolean grow = 4 * (mIndex.getInt(HEADER_COUNT) + 1) > mCapacity;
+				rebuildIndex(grow ? mCapacity * 2 : mCapacity);
+			}
+			if (mIndex == null)
+				return false;
+
+			slot = findFreeSlot(hash);
+			int offset = getRecordOffset(slot);
+			if (mIndex.getInt(offset + RECORD_STATE) == STATE_EMPTY)
+				mIndex.putInt(HEADER_OCCUPIED, mIndex.getInt(HEADER_OCCUPIED) + 1);
+
+			// Write the state last, so the record is only valid once it's
+			// complete.
+			for (int i = 0; i < HASH_LENGTH; i++)
+				mIndex.put(offset + RECORD_HASH + i, hash[i]);
+			mIndex.putLong(offset + RECORD_LENGTH, length);
+			mIndex.putLong(offset + RECORD_ACCESS, System.currentTimeMillis());
+			mIndex.putInt(offset + RECORD_STATE, STATE_USED);
+			mIndex.putInt(HEADER_COUNT, mIndex.getInt(HEADER_COUNT) + 1);
+			setTotalSize(getTotalSize() + length);
+		}
+
+		// Trim a little further than needed, so we don't have to look for the
+		// least recently used images on every commit.
+		if (getTotalSize() > mMaxSize)
+			trimToSize(mMaxSize - mMaxSize / 10);
+
+		return true;
+	}
+
+	/**
+	 * Removes the cached image for a URL.
+	 * 
+	 * @param url
+	 *            the URL of the image to remove.
+	 */
+	public synchronized void remove(String url) {
+		if (url == null || mIndex == null)
+			return;
+
+		int slot = findSlot(getHash(url));
+		if (slot >= 0)
+			removeSlot(slot);
+	}
+
+	/**
+	 * Deletes the least recently used images until the cache holds at most
+	 * the given amount of bytes. This looks at every record, so it also fixes
+	 * the total size if the app was killed while it was being updated.
+	 * 
+	 * @param maxSize
+	 *            the amount of bytes to trim the cache down to.
+	 */
+	private void trimToSize(long maxSize) {
+		final long[] accesses = new long[mCapacity];
+		Integer[] slots = new Integer[mIndex.getInt(HEADER_COUNT)];
+		int count = 0;
+		long size = 0;
+		for (int slot = 0; slot < mCapacity && count < slots.length; slot++) {
+			int offset = getRecordOffset(slot);
+			if (mIndex.getInt(offset + RECORD_STATE) != STATE_USED)
+				continue;
+
+			accesses[slot] = mIndex.getLong(offset + RECORD_ACCESS);
+			size += mIndex.getLong(offset + RECORD_LENGTH);
+			slots[count++] = slot;
+		}
+		setTotalSize(size);
+
+		Arrays.sort(slots, 0, count, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer lhs, Integer rhs) {
+				long left = accesses[lhs];
+				long right = accesses[rhs];
+				return left < right ? -1 : (left == right ? 0 : 1);
+			}
+		});
+
+		for (int i = 0; i < count && getTotalSize() > maxSize; i++)
+			removeSlot(slots[i]);
+	}
+
+	/**
+	 * Removes the record in a slot and deletes its image file.
+	 * 
+	 * @param slot
+	 *            the slot of the record to remove.
+	 */
+	private void removeSlot(int slot) {
+		int offset = getRecordOffset(slot);
+		byte[] hash = new byte[HASH_LENGTH];
+		for (int i = 0; i < HASH_LENGTH; i++)
+			hash[i] = mIndex.get(offset + RECORD_HASH + i);
+
+		mIndex.putInt(offset + RECORD_STATE, STATE_REMOVED);
+		mIndex.putInt(HEADER_COUNT, mIndex.getInt(HEADER_COUNT) - 1);
+		setTotalSize(getTotalSize() - mIndex.getLong(offset + RECORD_LENGTH));
+		getFile(hash).delete();
+		getValidatorsFile(hash).delete();
+	}
+
+	/**
+	 * @return the amount of bytes used by the cached images.
+	 */
+	public synchronized long getSize() {
+		return mIndex == null ? 0 : getTotalSize();
+	}
+
+	/**
+	 * @return the maximum amount of bytes the cached images may use.
+	 */
+	public long getMaxSize() {
+		return mMaxSize;
+	}
+
+	/**
+	 * @return the amount of images in the cache.
+	 */
+	public synchronized int size() {
+		return mIndex == null ? 0 : mIndex.getInt(HEADER_COUNT);
+	}
+
+	/**
+	 * Finds the slot holding the record for a hash.
+	 * 
+	 * @param hash
+	 *            the hash of the URL of the image.
+	 * @return the slot of the record, or -1 if there is none.
+	 */
+	private int findSlot(byte[] hash) {
+		int mask = mCapacity - 1;
+		int slot = getHomeSlot(hash);
+		for (int i = 0; i < mCapacity; i++) {
+			int offset = getRecordOffset(slot);
+			int state = mIndex.getInt(offset + RECORD_STATE);
+			if (state == STATE_EMPTY)
+				return -1;
+			if (state == STATE_USED && hashEquals(offset, hash))
+				return slot;
+
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds a slot to store a new record in. The table must have room for it.
+	 * 
+	 * @param hash
+	 *            the hash of the URL of the image.
+	 * @return the first empty or removed slot for the hash.
+	 */
+	private int findFreeSlot(byte[] hash) {
+		int mask = mCapacity - 1;
+		int slot = getHomeSlot(hash);
+		while (mIndex.getInt(getRecordOffset(slot) + RECORD_STATE) == STATE_USED)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	/**
+	 * @param hash
+	 *            the hash of the URL of the image.
+	 * @return the slot where probing for the hash starts.
+	 */
+	private int getHomeSlot(byte[] hash) {
+		int value = ((hash[0] & 0xff) << 24) | ((hash[1] & 0xff) << 16) | ((hash[2] & 0xff) << 8)
+				| (hash[3] & 0xff);
+		return value & (mCapacity - 1);
+	}
+
+	/**
+	 * @param offset
+	 *            the offset of a record.
+	 * @param hash
+	 *            the hash to compare to.
+	 * @return true if the record holds the hash.
+	 */
+	private boolean hashEquals(int offset, byte[] hash) {
+		for (int i = 0; i < HASH_LENGTH; i++) {
+			if (mIndex.get(offset + RECORD_HASH + i) != hash[i])
+				return false;
+		}
+		return true;
+	}
+
+	private static int getRecordOffset(int slot) {
+		return HEADER_SIZE + slot * RECORD_SIZE;
+	}
+
+	private long getTotalSize() {
+		return mIndex.getLong(HEADER_SIZE_BYTES);
+	}
+
+	private void setTotalSize(long size) {
+		mIndex.putLong(HEADER_SIZE_BYTES, size);
+	}
+
+	/**
+	 * Maps the index file, or creates a new one if there is no valid index.
+	 * Then deletes the files in the directory that the index doesn't know
+	 * about: temporary files left behind by earlier sessions, and images that
+	 * were moved into place but never recorded.
+	 */
+	private void openIndex() {
+		File file = new File(mDirectory, INDEX_FILE);
+		if (file.length() >= HEADER_SIZE) {
+			try {
+				MappedByteBuffer index = map(file, file.length());
+				int capacity = index.getInt(HEADER_CAPACITY);
+				if (index.getInt(HEADER_MAGIC) == INDEX_MAGIC
+						&& index.getInt(HEADER_VERSION) == INDEX_VERSION && capacity > 0
+						&& (capacity & (capacity - 1)) == 0
+						&& file.length() == getRecordOffset(capacity)) {
+					mIndex = index;
+					mCapacity = capacity;
+					deleteUnknownFiles();
+					return;
+				}
+				Log.w(DEBUG_TAG, "Invalid index in UrlImageDiskCache. Starting over.");
+			} catch (IOException e) {
+				Log.w(DEBUG_TAG, "Could not read the index of UrlImageDiskCache. Starting over.", e);
+			}
+		}
+
+		// Without a valid index, we can't tell which files are complete, so
+		// start over with an empty directory. Rebuilds during a commit must
+		// not do this, because a committed image may not have its record yet.
+		rebuildIndex(INITIAL_CAPACITY);
+		if (mIndex != null)
+			deleteUnknownFiles();
+	}
+
+	/**
+	 * Writes a new index with a given capacity containing the current records,
+	 * then atomically replaces the old index with it.
+	 * 
+	 * @param capacity
+	 *            the amount of slots in the new index. Must be a power of two.
+	 */
+	private void rebuildIndex(int capacity) {
+		MappedByteBuffer oldIndex = mIndex;
+		int oldCapacity = mCapacity;
+		File temp = new File(mDirectory, INDEX_FILE_TEMP);
+		temp.delete();
+
+		try {
+			mIndex = map(temp, getRecordOffset(capacity));
+			mCapacity = capacity;
+			mIndex.putInt(HEADER_MAGIC, INDEX_MAGIC);
+			mIndex.putInt(HEADER_VERSION, INDEX_VERSION);
+			mIndex.putInt(HEADER_CAPACITY, capacity);
+
+			int count = 0;
+			long size = 0;
+			byte[] hash = new byte[HASH_LENGTH];
+			for (int slot = 0; oldIndex != null && slot < oldCapacity; slot++) {
+				int oldOffset = getRecordOffset(slot);
+				if (oldIndex.getInt(oldOffset + RECORD_STATE) != STATE_USED)
+					continue;
+
+				for (int i = 0; i < HASH_LENGTH; i++)
+					hash[i] = oldIndex.get(oldOffset + RECORD_HASH + i);
+				int offset = getRecordOffset(findFreeSlot(hash));
+				for (int i = 0; i < HASH_LENGTH; i++)
+					mIndex.put(offset + RECORD_HASH + i, hash[i]);
+				long length = oldIndex.getLong(oldOffset + RECORD_LENGTH);
+				mIndex.putLong(offset + RECORD_LENGTH, length);
+				mIndex.putLong(offset + RECORD_ACCESS, oldIndex.getLong(oldOffset + RECORD_ACCESS));
+				mIndex.putInt(offset + RECORD_STATE, STATE_USED);
+				count++;
+				size += length;
+			}
+			mIndex.putInt(HEADER_COUNT, count);
+			mIndex.putInt(HEADER_OCCUPIED, count);
+			setTotalSize(size);
+			mIndex.force();
+
+			if (!temp.renameTo(new File(mDirectory, INDEX_FILE)))
+				throw new IOException("Could not rename " + temp);
+		} catch (IOException e) {
+			Log.e(DEBUG_TAG, "Could not write the index of UrlImageDiskCache", e);
+			mIndex = null;
+			mCapacity = 0;
+		}
+	}
+
+	/**
+	 * Deletes any files in the directory that aren't in the index. Temporary
+	 * files that are being written by this instance are left alone.
+	 */
+	private void deleteUnknownFiles() {
+		File[] files = mDirectory.listFiles();
+		if (files == null)
+			return;
+
+		String currentTempPrefix = "." + mSession + "-";
+		for (File file : files) {
+			String name = file.getName();
+			if (name.equals(INDEX_FILE))
+				continue;
+
+			if (name.endsWith(TEMP_SUFFIX)) {
+				if (!name.contains(currentTempPrefix))
+					file.delete();
+			} else {
+				if (name.endsWith(VALIDATORS_SUFFIX))
+					name = name.substring(0, name.length() - VALIDATORS_SUFFIX.length());
+				byte[] hash = fromHex(name);
+				if (hash == null || findSlot(hash) < 0)
+					file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Maps a file into memory, creating it if needed.
+	 * 
+	 * @param file
+	 *            the file to map.
+	 * @param length
+	 *            the length of the file.
+	 * @return the mapped contents of the file.
+	 */
+	private static MappedByteBuffer map(File file, long length) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			randomAccessFile.setLength(length);
+			return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+		} finally {
+			closeQuietly(randomAccessFile);
+		}
+	}
+
+	/**
+	 * @param hash
+	 *            the hash of the URL of an image.
+	 * @return the file holding the image.
+	 */
+	private File getFile(byte[] hash) {
+		return new File(mDirectory, toHex(hash));
+	}
+
+	/**
+	 * @param hash
+	 *            the hash of the URL of an image.
+	 * @return the file holding the validators of the image.
+	 */
+	private File getValidatorsFile(byte[] hash) {
+		return new File(mDirectory, toHex(hash) + VALIDATORS_SUFFIX);
+	}
+
+	/**
+	 * @param url
+	 *            the URL of the image.
+	 * @return the MD5 hash of the URL.
+	 */
+	private static byte[] getHash(String url) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			return digest.digest(url.getBytes("UTF-8"));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * @param hex
+	 *            the name of a file.
+	 * @return the hash that the name represents, or null if it isn't one.
+	 */
+	private static byte[] fromHex(String hex) {
+		if (hex.length() != HASH_LENGTH * 2)
+			return null;
+
+		byte[] bytes = new byte[HASH_LENGTH];
+		for (int i = 0; i < HASH_LENGTH; i++) {
+			int high = Character.digit(hex.charAt(2 * i), 16);
+			int low = Character.digit(hex.charAt(2 * i + 1), 16);
+			if (high < 0 || low < 0)
+				return null;
+			bytes[i] = (byte) ((high << 4) | low);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Closes a stream, ignoring any errors.
+	 * 
+	 * @param closeable
+	 *            the stream to close. May be null.
+	 */
+	static void closeQuietly(Closeable closeable) {
+		if (closeable == null)
+			return;
+
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			// Nothing we can do.
+		}
+	}
+}
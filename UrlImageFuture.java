@@ -0,0 +1,295 @@
+/**
+ * Copyright (c) 2013, Tim Mahoney (tim.ivan.mahoney@gmail.com)
+ * 
+ * LICENSE: Do what you want with it.
+ */
+
+package com.timahoney.urlimage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Bitmap;
+import android.os.Looper;
+
+import com.timahoney.urlimage.UrlImageLoader.UrlImageLoaderDelegate;
+
+/**
+ * The result of an image that is being loaded by {@link UrlImageLoader}. Get
+ * one by calling any of the variants of {@link UrlImageLoader#loadImageFuture}.
+ * <p>
+ * You can wait for the image with {@link #get()}, or be notified when it has
+ * loaded with {@link #addListener(UrlImageFutureListener)}. To wait for many
+ * images at once, use {@link #awaitAll(Collection, long, TimeUnit)} or
+ * {@link #whenAll(Collection, Runnable)}. No threads are started for this; the
+ * future is completed when the loader notifies its delegates on the main
+ * thread. That is also why {@link #get()} may not be called on the main
+ * thread.
+ * <p>
+ * Cancelling the future stops it from waiting for the image. If nothing else
+ * is waiting for the image, then the request is cancelled as well.
+ * <p>
+ * The loader keeps the future until it is done or cancelled, so listeners are
+ * notified even if nothing else holds on to it.
+ * <p>
+ * The image is never decoded into again, so you can keep it around.
+ */
+public class UrlImageFuture implements Future<Bitmap>, UrlImageLoaderDelegate {
+
+	/**
+	 * An interface for being notified when a {@link UrlImageFuture} is done.
+	 */
+	public interface UrlImageFutureListener {
+		/**
+		 * Called when the image has loaded, failed to load or was cancelled.
+		 * This is called on the main thread, or right away if the future was
+		 * already done.
+		 * 
+		 * @param future
+		 *            the future that is done.
+		 */
+		public void onDone(UrlImageFuture future);
+	}
+
+	private final UrlImageLoader mLoader;
+	private final String mUrl;
+	private final int mWidth;
+	private final int mHeight;
+	private Bitmap mBitmap;
+	private boolean mDone;
+	private boolean mCancelled;
+	private List<UrlImageFutureListener> mListeners;
+
+	UrlImageFuture(UrlImageLoader loader, String url, int width, int height) {
+		mLoader = loader;
+		mUrl = url;
+		mWidth = width;
+		mHeight = height;
+	}
+
+	/**
+	 * @return the URL of the image.
+	 */
+	public String getUrl() {
+		return mUrl;
+	}
+
+	@Override
+	public void onLoadImage(UrlImageLoader loader, String url, Bitmap image) {
+		complete(image, false);
+	}
+
+	/**
+	 * Finishes the future and notifies its listeners, unless it is already
+	 * done.
+	 * 
+	 * @param image
+	 *            the image that was loaded. May be null.
+	 * @param cancelled
+	 *            true if the future was cancelled.
+	 * @return true if this finished the future.
+	 */
+	private boolean complete(Bitmap image, boolean cancelled) {
+		List<UrlImageFutureListener> listeners;
+		synchronized (this) {
+			if (mDone)
+				return false;
+
+			mBitmap = image;
+			mCancelled = cancelled;
+			mDone = true;
+			listeners = mListeners;
+			mListeners = null;
+			notifyAll();
+		}
+
+		if (listeners != null) {
+			for (UrlImageFutureListener listener : listeners)
+				listener.onDone(this);
+		}
+		return true;
+	}
+
+	/**
+	 * Adds a listener to be notified when the future is done. If it is already
+	 * done, then the listener is notified right away.
+	 * 
+	 * @param listener
+	 *            the listener to notify.
+	 */
+	public void addListener(UrlImageFutureListener listener) {
+		if (listener == null)
+			return;
+
+		synchronized (this) {
+			if (!mDone) {
+				if (mListeners == null)
+					mListeners = new ArrayList<UrlImageFutureListener>(1);
+				mListeners.add(listener);
+				return;
+			}
+		}
+		listener.onDone(this);
+	}
+
+	/**
+	 * Stops waiting for the image. If nothing else is waiting for it, then the
+	 * request is cancelled too.
+	 * 
+	 * @param mayInterruptIfRunning
+	 *            ignored. A running download is always aborted if nothing else
+	 *            needs it.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if (!complete(null, true))
+			return false;
+
+		mLoader.cancel(mUrl, mWidth, mHeight, this);
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return mCancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return mDone;
+	}
+
+	/**
+	 * Waits for the image to load. This may not be called on the main thread,
+	 * since that is where the image is delivered.
+	 * 
+	 * @return the image, or null if it couldn't be loaded.
+	 * @throws CancellationException
+	 *             thrown if the future was cancelled.
+	 * @throws InterruptedException
+	 *             thrown if the thread was interrupted while waiting.
+	 */
+	@Override
+	public synchronized Bitmap get() throws InterruptedException {
+		checkNotMainThread();
+		while (!mDone)
+			wait();
+
+		return getResult();
+	}
+
+	/**
+	 * Waits for the image to load for at most the given time. This may not be
+	 * called on the main thread, since that is where the image is delivered.
+	 * 
+	 * @param timeout
+	 *            the longest time to wait.
+	 * @param unit
+	 *            the unit of the timeout.
+	 * @return the image, or null if it couldn't be loaded.
+	 * @throws CancellationException
+	 *             thrown if the future was cancelled.
+	 * @throws InterruptedException
+	 *             thrown if the thread was interrupted while waiting.
+	 * @throws TimeoutException
+	 *             thrown if the image didn't load in time. The request keeps
+	 *             running.
+	 */
+	@Override
+	public synchronized Bitmap get(long timeout, TimeUnit unit) throws InterruptedException,
+			TimeoutException {
+		checkNotMainThread();
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!mDone) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0)
+				throw new TimeoutException("Timed out waiting for the image at " + mUrl);
+
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+
+		return getResult();
+	}
+
+	/**
+	 * @return the image. This must be called while holding the lock, once the
+	 *         future is done.
+	 */
+	private Bitmap getResult() {
+		if (mCancelled)
+			throw new CancellationException("The image at " + mUrl + " was cancelled.");
+
+		return mBitmap;
+	}
+
+	private static void checkNotMainThread() {
+		if (Looper.myLooper() == Looper.getMainLooper())
+			throw new IllegalStateException("You can't wait for a UrlImageFuture on the main thread.");
+	}
+
+	/**
+	 * Waits until all the futures are done, for at most the given time. This
+	 * may not be called on the main thread.
+	 * 
+	 * @param futures
+	 *            the futures to wait for.
+	 * @param timeout
+	 *            the longest time to wait for all of them.
+	 * @param unit
+	 *            the unit of the timeout.
+	 * @return true if all the futures are done, false if the time ran out.
+	 * @throws InterruptedException
+	 *             thrown if the thread was interrupted while waiting.
+	 */
+	public static boolean awaitAll(Collection<UrlImageFuture> futures, long timeout, TimeUnit unit)
+			throws InterruptedException {
+		checkNotMainThread();
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (UrlImageFuture future : futures) {
+			synchronized (future) {
+				while (!future.mDone) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0)
+						return false;
+
+					TimeUnit.NANOSECONDS.timedWait(future, remaining);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Runs a callback once all the futures are done. The callback runs on the
+	 * thread that finishes the last future, which is usually the main thread,
+	 * or right away if they are all done already.
+	 * 
+	 * @param futures
+	 *            the futures to wait for.
+	 * @param callback
+	 *            the callback to run.
+	 */
+	public static void whenAll(Collection<UrlImageFuture> futures, final Runnable callback) {
+		if (futures.isEmpty()) {
+			callback.run();
+			return;
+		}
+
+		final AtomicInteger remaining = new AtomicInteger(futures.size());
+		UrlImageFutureListener listener = new UrlImageFutureListener() {
+			@Override
+			public void onDone(UrlImageFuture future) {
+				if (remaining.decrementAndGet() == 0)
+					callback.run();
+			}
+		};
+		for (UrlImageFuture future : futures)
+			future.addListener(listener);
+	}
+}
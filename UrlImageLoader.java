@@ -6,17 +6,35 @@
 
 package com.timahoney.urlimage;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+import android.view.View;
 
 import com.timahoney.urlimage.UrlImageRequest.UrlImageRequestDelegate;
 
@@ -24,14 +42,94 @@ import com.timahoney.urlimage.UrlImageRequest.UrlImageRequestDelegate;
  * A class that loads images from URLs. This is a singleton class, so call
  * {@link #getInstance} to get the instance.
  * 
- * To load an image, call any of the variants of {@link #loadImage}.
- * 
+ * To load an image, call any of the variants of {@link #loadImage}. If you know
+ * the size the image will be shown at, pass it along so the image can be
+ * downsampled while it is decoded.
+ * <p>
+ * If a delegate no longer needs an image, call {@link #cancel}. Once a request
+ * has no delegates left, it is removed from the queue, or aborted if it is
+ * already running.
+ * <p>
+ * The loader only keeps weak references to delegates that are views, so a
+ * view that is waiting for an image can still be garbage collected along with
+ * its activity. Once all the delegates of a request have been collected, the
+ * request is cancelled. Other delegates, like a {@link UrlImageFuture} or an
+ * anonymous class, are kept until the image has loaded or they are cancelled.
+ * <p>
+ * Loading an image goes through three stages, described by
+ * {@link UrlImageLoaderStage}. Images are fetched on a pool of I/O threads and
+ * decoded on a separate pool of threads sized to the number of CPU cores, so a
+ * slow server doesn't hold up decoding. Fetched images wait for a decode thread
+ * in a bounded queue; if it is full, fetching waits. Finally, the delegates are
+ * notified on the main thread. Threads are started as requests come in and stop
+ * after they have been idle for a while. To change the thread pools, use a
+ * {@link Builder} before the loader is first used. To see where the time goes,
+ * use {@link #getStageStats(UrlImageLoaderStage)}.
+ * <p>
+ * Requests wait for a fetch thread by priority. Only a few requests to the same
+ * host are fetched at once, and requests of the same priority take turns
+ * between hosts, so a slow host can't take up every fetch thread. While a list
+ * is being flung, call {@link #pause()} and {@link #resume()} once it settles,
+ * and consider {@link #setLastInFirstOut(boolean)} so the images that are
+ * visible at the end load first.
+ * <p>
+ * Requests that finish close together are delivered together in a single
+ * message, at most once per frame, with the highest priority requests first. On
+ * Jelly Bean and later, deliveries can instead happen at the start of a
+ * {@link Choreographer} frame with a time budget, using
+ * {@link Builder#setFrameAlignedDelivery}. Requests that don't fit in the
+ * budget wait for the next frame, and {@link #getDeferredDeliveryCount()} tells
+ * how often that happened.
+ * <p>
+ * To decode opaque images with {@link Bitmap.Config#RGB_565} and fit about
+ * twice as many of them in the cache, use
+ * {@link Builder#setOpaqueConfig(Bitmap.Config)}, or pass the configs to
+ * {@link #loadImage} for a single image.
+ * <p>
+ * If a download fails in a way that may work later, such as a network error or
+ * a 5xx response, then the request is queued again at its original priority
+ * after an exponentially growing, jittered delay, or after the time the server
+ * asked for with Retry-After. Nothing sleeps while waiting.
+ * <p>
+ * URLs that failed to load are remembered for a while, so a broken URL in a
+ * list isn't downloaded every time a row is shown. Delegates asking for such a
+ * URL are told right away that it failed. A permanent failure, like a 404
+ * response or an image that can't be decoded, is remembered for 10 minutes. A
+ * failure that may go away, like a network error, is remembered for 30
+ * seconds, after any retries. To change how long, use
+ * {@link Builder#setFailureTimeouts}. Call {@link #clearFailures()} to try all
+ * of them again, for example when the network comes back.
+ * <p>
+ * Instead of a delegate, you can also get a {@link UrlImageFuture} for an image
+ * with {@link #loadImageFuture}.
+ * <p>
+ * Images that will be needed soon, like the next page of a list, can be loaded
+ * ahead of time with {@link #prefetch}. Prefetches wait for every other
+ * request, whatever its priority. Once something loads a prefetched image, it
+ * is moved up to that priority.
+ * <p>
  * Any images loaded by this class will be cached in the {@link UrlImageCache}.
  * If you try to load an image that has already been cached, then the cached
  * image will be returned.
  */
 public class UrlImageLoader implements UrlImageRequestDelegate {
 
+	// The longest we wait before retrying a request, in milliseconds.
+	private static final long MAX_RETRY_DELAY = 60000;
+
+	// The most failed URLs that are remembered at once.
+	private static final int MAX_FAILURES = 256;
+
+	// Delegates are notified at most once per frame, in milliseconds.
+	private static final long FRAME_MILLIS = 16;
+
+	private static final Comparator<DeliveryTask> DELIVERY_ORDER = new Comparator<DeliveryTask>() {
+		@Override
+		public int compare(DeliveryTask lhs, DeliveryTask rhs) {
+			return rhs.priority.compareTo(lhs.priority);
+		}
+	};
+
 	/**
 	 * A delegate to be notified when the image loader has loaded an image.
 	 */
@@ -82,55 +180,720 @@ public class UrlImageLoader implements UrlImageRequestDelegate {
 		VERY_HIGH
 	}
 
+	/**
+	 * A stage that a request goes through while loading an image.
+	 */
+	public enum UrlImageLoaderStage {
+		/**
+		 * Reading the bytes of the image from the disk cache or the network.
+		 */
+		FETCH,
+
+		/**
+		 * Decoding the bytes of the image into a bitmap.
+		 */
+		DECODE,
+
+		/**
+		 * Notifying the delegates on the main thread.
+		 */
+		DELIVER
+	}
+
+	/**
+	 * A snapshot of how requests have moved through a
+	 * {@link UrlImageLoaderStage}.
+	 */
+	public static class UrlImageLoaderStageStats {
+		private final int mQueueDepth;
+		private final long mCompletedCount;
+		private final long mTotalWaitNanos;
+		private final long mTotalRunNanos;
+
+		UrlImageLoaderStageStats(int queueDepth, long completedCount, long totalWaitNanos,
+				long totalRunNanos) {
+			mQueueDepth = queueDepth;
+			mCompletedCount = completedCount;
+			mTotalWaitNanos = totalWaitNanos;
+			mTotalRunNanos = totalRunNanos;
+		}
+
+		/**
+		 * @return the amount of requests waiting to enter the stage.
+		 */
+		public int getQueueDepth() {
+			return mQueueDepth;
+		}
+
+		/**
+		 * @return the amount of requests that have completed the stage.
+		 */
+		public long getCompletedCount() {
+			return mCompletedCount;
+		}
+
+		/**
+		 * @return the average time, in milliseconds, a request waited before
+		 *         entering the stage.
+		 */
+		public double getAverageWaitMillis() {
+			return mCompletedCount == 0 ? 0 : mTotalWaitNanos / 1e6 / mCompletedCount;
+		}
+
+		/**
+		 * @return the average time, in milliseconds, a request spent in the
+		 *         stage.
+		 */
+		public double getAverageRunMillis() {
+			return mCompletedCount == 0 ? 0 : mTotalRunNanos / 1e6 / mCompletedCount;
+		}
+	}
+
+	/**
+	 * Options for {@link UrlImageLoader#prefetch}.
+	 */
+	public static class PrefetchOptions {
+		private int mWidth;
+		private int mHeight;
+		private boolean mFetchOnly;
+		private Bitmap.Config mConfig;
+		private Bitmap.Config mOpaqueConfig;
+
+		/**
+		 * Sets the size the images will be shown at, so they are decoded at
+		 * the right size. By default, images are decoded at their original
+		 * size.
+		 * 
+		 * @param width
+		 *            the width the images will be shown at, or 0 if it doesn't
+		 *            matter.
+		 * @param height
+		 *            the height the images will be shown at, or 0 if it
+		 *            doesn't matter.
+		 * @return these options.
+		 */
+		public PrefetchOptions setSize(int width, int height) {
+			mWidth = Math.max(width, 0);
+			mHeight = Math.max(height, 0);
+			return this;
+		}
+
+		/**
+		 * @param fetchOnly
+		 *            true to only download the images into the
+		 *            {@link UrlImageDiskCache} without decoding them, which
+		 *            saves memory. If there is no disk cache, then the images
+		 *            are decoded anyway. The default is false.
+		 * @return these options.
+		 */
+		public PrefetchOptions setFetchOnly(boolean fetchOnly) {
+			mFetchOnly = fetchOnly;
+			return this;
+		}
+
+		/**
+		 * Sets the configs the images are decoded with. Use the same ones as
+		 * the views that will show the images, so they find them in the cache.
+		 * 
+		 * @param config
+		 *            the config to decode the images with, or null for the one
+		 *            of the loader.
+		 * @param opaqueConfig
+		 *            the config to decode images that can't be transparent
+		 *            with, or null for the one of the loader.
+		 * @return these options.
+		 */
+		public PrefetchOptions setConfig(Bitmap.Config config, Bitmap.Config opaqueConfig) {
+			mConfig = config;
+			mOpaqueConfig = opaqueConfig;
+			return this;
+		}
+	}
+
+	/**
+	 * Configures the shared image loader. Call {@link #install()} before the
+	 * first call to {@link UrlImageLoader#getInstance()}.
+	 */
+	public static class Builder {
+		private int mFetchThreadCount = 8;
+		private int mDecodeThreadCount = Runtime.getRuntime().availableProcessors();
+		private int mDecodeQueueSize = 32;
+		private int mMaxRequestsPerHost = 4;
+		private long mKeepAliveMillis = 15000;
+		private int mConnectTimeout = UrlImageRequest.DEFAULT_CONNECT_TIMEOUT;
+		private int mReadTimeout = UrlImageRequest.DEFAULT_READ_TIMEOUT;
+		private int mTimeout = UrlImageRequest.DEFAULT_TIMEOUT;
+		private int mMaxRetries = 2;
+		private long mRetryBackoffMillis = 1000;
+		private long mTransientFailureMillis = 30000;
+		private long mPermanentFailureMillis = 10 * 60 * 1000;
+		private boolean mFrameAligned;
+		private long mFrameBudgetNanos = TimeUnit.MILLISECONDS.toNanos(4);
+		private Bitmap.Config mConfig = Bitmap.Config.ARGB_8888;
+		private Bitmap.Config mOpaqueConfig = Bitmap.Config.ARGB_8888;
+
+		/**
+		 * @param count
+		 *            the maximum amount of threads that download images. These
+		 *            threads mostly wait for the network, so there can be many
+		 *            of them. The default is 8.
+		 * @return this builder.
+		 */
+		public Builder setFetchThreadCount(int count) {
+			if (count <= 0)
+				throw new IllegalArgumentException("There must be at least one fetch thread.");
+
+			mFetchThreadCount = count;
+			return this;
+		}
+
+		/**
+		 * @param count
+		 *            the maximum amount of threads that decode images. The
+		 *            default is the number of CPU cores.
+		 * @return this builder.
+		 */
+		public Builder setDecodeThreadCount(int count) {
+			if (count <= 0)
+				throw new IllegalArgumentException("There must be at least one decode thread.");
+
+			mDecodeThreadCount = count;
+			return this;
+		}
+
+		/**
+		 * @param count
+		 *            the maximum amount of images fetched from the same host
+		 *            at once. The default is 4.
+		 * @return this builder.
+		 */
+		public Builder setMaxRequestsPerHost(int count) {
+			if (count <= 0)
+				throw new IllegalArgumentException("There must be at least one request per host.");
+
+			mMaxRequestsPerHost = count;
+			return this;
+		}
+
+		/**
+		 * @param size
+		 *            the amount of fetched images that may wait for a decode
+		 *            thread. When the queue is full, fetch threads wait. The
+		 *            default is 32.
+		 * @return this builder.
+		 */
+		public Builder setDecodeQueueSize(int size) {
+			if (size <= 0)
+				throw new IllegalArgumentException("The decode queue must hold at least one image.");
+
+			mDecodeQueueSize = size;
+			return this;
+		}
+
+		/**
+		 * @param time
+		 *            how long a thread may be idle before it stops. The default
+		 *            is 15 seconds.
+		 * @param unit
+		 *            the unit of the time.
+		 * @return this builder.
+		 */
+		public Builder setKeepAlive(long time, TimeUnit unit) {
+			if (unit.toMillis(time) <= 0)
+				throw new IllegalArgumentException("The keep alive time must be positive.");
+
+			mKeepAliveMillis = unit.toMillis(time);
+			return this;
+		}
+
+		/**
+		 * @param millis
+		 *            how long connecting to a server may take, or 0 for no
+		 *            limit. The default is 10 seconds.
+		 * @return this builder.
+		 */
+		public Builder setConnectTimeout(int millis) {
+			if (millis < 0)
+				throw new IllegalArgumentException("The connect timeout can't be negative.");
+
+			mConnectTimeout = millis;
+			return this;
+		}
+
+		/**
+		 * @param millis
+		 *            how long a single read from a connection may wait for
+		 *            data, or 0 for no limit. The default is 10 seconds.
+		 * @return this builder.
+		 */
+		public Builder setReadTimeout(int millis) {
+			if (millis < 0)
+				throw new IllegalArgumentException("The read timeout can't be negative.");
+
+			mReadTimeout = millis;
+			return this;
+		}
+
+		/**
+		 * @param millis
+		 *            how long downloading a whole image may take, or 0 for no
+		 *            limit. The default is 30 seconds.
+		 * @return this builder.
+		 */
+		public Builder setTimeout(int millis) {
+			if (millis < 0)
+				throw new IllegalArgumentException("The timeout can't be negative.");
+
+			mTimeout = millis;
+			return this;
+		}
+
+		/**
+		 * @param count
+		 *            how many times a download that failed in a way that may
+		 *            work later is tried again, or 0 to never retry. The
+		 *            default is 2.
+		 * @return this builder.
+		 */
+		public Builder setMaxRetries(int count) {
+			if (count < 0)
+				throw new IllegalArgumentException("The amount of retries can't be negative.");
+
+			mMaxRetries = count;
+			return this;
+		}
+
+		/**
+		 * @param time
+		 *            roughly how long to wait before the first retry. The wait
+		 *            doubles with each retry. The default is 1 second.
+		 * @param unit
+		 *            the unit of the time.
+		 * @return this builder.
+		 */
+		public Builder setRetryBackoff(long time, TimeUnit unit) {
+			if (unit.toMillis(time) <= 0)
+				throw new IllegalArgumentException("The retry backoff must be positive.");
+
+			mRetryBackoffMillis = unit.toMillis(time);
+			return this;
+		}
+
+		/**
+		 * Sets how long a URL that failed to load isn't requested again.
+		 * 
+		 * @param transientTime
+		 *            how long to remember a failure that may go away, like a
+		 *            network error. The default is 30 seconds.
+		 * @param permanentTime
+		 *            how long to remember a failure that won't go away, like
+		 *            a 404 response. The default is 10 minutes.
+		 * @param unit
+		 *            the unit of the times.
+		 * @return this builder.
+		 */
+		public Builder setFailureTimeouts(long transientTime, long permanentTime, TimeUnit unit) {
+			if (transientTime < 0 || permanentTime < 0)
+				throw new IllegalArgumentException("The failure timeouts can't be negative.");
+
+			mTransientFailureMillis = unit.toMillis(transientTime);
+			mPermanentFailureMillis = unit.toMillis(permanentTime);
+			return this;
+		}
+
+		/**
+		 * Notifies delegates at the start of the next frame, when views are
+		 * about to be drawn anyway, and only for as long as the frame budget
+		 * allows. This only works on Jelly Bean and later. It is off by
+		 * default.
+		 * 
+		 * @param enabled
+		 *            true to deliver images at the start of frames.
+		 * @return this builder.
+		 */
+		public Builder setFrameAlignedDelivery(boolean enabled) {
+			mFrameAligned = enabled;
+			return this;
+		}
+
+		/**
+		 * @param time
+		 *            how long delegates may be notified for in each frame when
+		 *            deliveries are aligned to frames. At least one delegate
+		 *            is always notified. The default is 4 milliseconds.
+		 * @param unit
+		 *            the unit of the time.
+		 * @return this builder.
+		 */
+		public Builder setFrameBudget(long time, TimeUnit unit) {
+			if (unit.toNanos(time) <= 0)
+				throw new IllegalArgumentException("The frame budget must be positive.");
+
+			mFrameBudgetNanos = unit.toNanos(time);
+			return this;
+		}
+
+		/**
+		 * @param config
+		 *            the config images are decoded with. The default is
+		 *            {@link Bitmap.Config#ARGB_8888}.
+		 * @return this builder.
+		 */
+		public Builder setConfig(Bitmap.Config config) {
+			if (config == null)
+				throw new IllegalArgumentException("The config can't be null.");
+
+			mConfig = config;
+			return this;
+		}
+
+		/**
+		 * @param config
+		 *            the config images that can't be transparent, such as
+		 *            JPEGs, are decoded with. Use {@link Bitmap.Config#RGB_565}
+		 *            to halve the memory they use. The default is
+		 *            {@link Bitmap.Config#ARGB_8888}.
+		 * @return this builder.
+		 */
+		public Builder setOpaqueConfig(Bitmap.Config config) {
+			if (config == null)
+				throw new IllegalArgumentException("The opaque config can't be null.");
+
+			mOpaqueConfig = config;
+			return this;
+		}
+
+		/**
+		 * Creates the shared image loader with this configuration.
+		 * 
+		 * @return the shared image loader.
+		 * @throws IllegalStateException
+		 *             thrown if the shared image loader already exists.
+		 */
+		public UrlImageLoader install() {
+			synchronized (UrlImageLoader.class) {
+				if (sInstance != null)
+					throw new IllegalStateException("The UrlImageLoader has already been created.");
+
+				sInstance = new UrlImageLoader(this);
+				return sInstance;
+			}
+		}
+	}
+
+	/**
+	 * Keeps running totals of the time spent in a stage.
+	 */
+	private static class StageCounter {
+		final AtomicInteger pending = new AtomicInteger();
+		final AtomicLong completed = new AtomicLong();
+		final AtomicLong waitNanos = new AtomicLong();
+		final AtomicLong runNanos = new AtomicLong();
+
+		void record(long queuedAt, long startedAt, long finishedAt) {
+			waitNanos.addAndGet(startedAt - queuedAt);
+			runNanos.addAndGet(finishedAt - startedAt);
+			completed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Work done for a request in a stage, which records how long it waited
+	 * and how long it ran.
+	 */
+	private static abstract class StageTask implements Runnable {
+		private final StageCounter mCounter;
+		private final long mQueuedAt;
+
+		StageTask(StageCounter counter) {
+			mCounter = counter;
+			mQueuedAt = System.nanoTime();
+			mCounter.pending.incrementAndGet();
+		}
+
+		@Override
+		public final void run() {
+			mCounter.pending.decrementAndGet();
+			long startedAt = System.nanoTime();
+			runStage();
+			mCounter.record(mQueuedAt, startedAt, System.nanoTime());
+		}
+
+		abstract void runStage();
+	}
+
+	/**
+	 * A finished request waiting for its delegates to be notified.
+	 */
+	private static class DeliveryTask extends StageTask {
+		final UrlImageRequest request;
+		final UrlImageLoaderPriority priority;
+
+		DeliveryTask(StageCounter counter, UrlImageRequest request, UrlImageLoaderPriority priority) {
+			super(counter);
+			this.request = request;
+			this.priority = priority;
+		}
+
+		@Override
+		void runStage() {
+			request.notifyDelegate();
+		}
+	}
+
+	/**
+	 * A reference to a delegate waiting for an image. Views are only referenced
+	 * weakly. Often nothing else holds other delegates, so they are also
+	 * referenced strongly until the request is done. It remembers the key of
+	 * the image, so it can be removed once the delegate is collected.
+	 */
+	private static class DelegateReference extends WeakReference<UrlImageLoaderDelegate> {
+		final UrlImageCacheKey key;
+		final UrlImageLoaderDelegate strong;
+
+		DelegateReference(UrlImageLoaderDelegate delegate, UrlImageCacheKey key,
+				ReferenceQueue<UrlImageLoaderDelegate> queue) {
+			super(delegate, queue);
+			this.key = key;
+			this.strong = delegate instanceof View ? null : delegate;
+		}
+	}
+
+	/**
+	 * Delivers finished requests at the start of the next frame. Posting this
+	 * to the main thread asks the main thread's {@link Choreographer} for the
+	 * next frame.
+	 */
+	private class FrameDelivery implements Runnable, Choreographer.FrameCallback {
+		private final long mBudgetNanos;
+
+		FrameDelivery(long budgetNanos) {
+			mBudgetNanos = budgetNanos;
+		}
+
+		@Override
+		public void run() {
+			Choreographer.getInstance().postFrameCallback(this);
+		}
+
+		@Override
+		public void doFrame(long frameTimeNanos) {
+			deliverAll(mBudgetNanos);
+		}
+	}
+
+	/**
+	 * A request waiting to be fetched with the priority it was queued with.
+	 * This is the fetch stage. Once the image has been fetched, the request is
+	 * handed to the decode stage.
+	 */
+	private class QueuedRequest implements Runnable {
+		final UrlImageRequest request;
+		final UrlImageLoaderPriority priority;
+		final int attempt;
+		final boolean prefetch;
+		final String host;
+		final long queuedAt;
+		boolean running;
+
+		QueuedRequest(UrlImageRequest request, UrlImageLoaderPriority priority, int attempt,
+				boolean prefetch) {
+			this.request = request;
+			this.priority = priority;
+			this.attempt = attempt;
+			this.prefetch = prefetch;
+			this.host = request.getHost();
+			this.queuedAt = System.nanoTime();
+		}
+
+		@Override
+		public void run() {
+			long startedAt = System.nanoTime();
+			try {
+
+				// A request that throws must still be delivered, or it would
+				// never be removed.
+				boolean fetched;
+				try {
+					fetched = request.fetch();
+				} catch (RuntimeException e) {
+					request.fail(e);
+					fetched = false;
+				}
+				mFetchCounter.record(queuedAt, startedAt, System.nanoTime());
+
+				// Keep the fetch slot until the request has been handed on,
+				// which waits while the decode queue is full. Otherwise the
+				// next requests would start and pile up behind this one.
+				if (retryLater(this))
+					return;
+				if (fetched)
+					decode(request, priority);
+				else
+					deliver(request, priority);
+			} finally {
+				onFetchFinished(this);
+			}
+		}
+	}
+
 	private static UrlImageLoader sInstance;
 
-	private Map<String, UrlImageRequest> mRequests;
-	private ThreadPoolExecutor mExecutor;
-	private BlockingQueue<Runnable> mQueue;
-	private Map<Runnable, UrlImageLoaderPriority> mPriorities;
+	private Map<UrlImageCacheKey, UrlImageRequest> mRequests;
+	private ThreadPoolExecutor mFetchExecutor;
+	private ThreadPoolExecutor mDecodeExecutor;
+	private Map<UrlImageRequest, QueuedRequest> mQueuedRequests;
+
+	// The requests waiting to be fetched. There is a map for each priority,
+	// from the highest to the lowest, followed by a map for each priority of
+	// prefetches. Each map holds a queue for each host, in the order in which
+	// the hosts will get their next turn.
+	private List<LinkedHashMap<String, LinkedList<QueuedRequest>>> mPending;
+	private Map<String, Integer> mHostFetchCounts;
+	private int mPendingCount;
+	private int mFetchCount;
+	private int mMaxFetchCount;
+	private int mMaxRequestsPerHost;
+	private boolean mPaused;
+	private boolean mLastInFirstOut;
+	private int mConnectTimeout;
+	private int mReadTimeout;
+	private int mTimeout;
+	private Bitmap.Config mConfig;
+	private Bitmap.Config mOpaqueConfig;
+	private Handler mMainHandler;
+	private StageCounter mFetchCounter;
+	private StageCounter mDecodeCounter;
+	private StageCounter mDeliverCounter;
+
+	// Finished requests collect in one list while the other is delivered.
+	// Both are guarded by the lock of mDeliveries.
+	private ArrayList<DeliveryTask> mDeliveries;
+	private ArrayList<DeliveryTask> mDelivering;
+	private boolean mDeliveryPosted;
+	private long mLastDeliveryTime;
+	private long mDeferredDeliveryCount;
+	private Runnable mDeliverRunnable;
+
+	// Only created on Jelly Bean and later, so older versions never load
+	// Choreographer.
+	private Runnable mFrameDelivery;
+
+	private Map<UrlImageCacheKey, List<DelegateReference>> mUrlDelegates;
+	private ReferenceQueue<UrlImageLoaderDelegate> mCollectedDelegates;
+	private int mMaxRetries;
+	private long mRetryBackoffMillis;
+	private Random mRandom;
 
-	private Map<String, Set<UrlImageLoaderDelegate>> mUrlDelegates;
+	// When each URL that failed to load may be requested again, oldest
+	// failure first.
+	private LinkedHashMap<String, Long> mFailures;
+	private long mTransientFailureMillis;
+	private long mPermanentFailureMillis;
 
 	/**
 	 * @return the singleton instance of this class.
 	 */
 	public static synchronized UrlImageLoader getInstance() {
 		if (sInstance == null)
-			sInstance = new UrlImageLoader();
+			sInstance = new UrlImageLoader(new Builder());
 
 		return sInstance;
 	}
 
 	/**
 	 * Private constructor to initialize an image loader.
+	 * 
+	 * @param builder
+	 *            the configuration of the loader.
 	 */
-	private UrlImageLoader() {
-		mRequests = new HashMap<String, UrlImageRequest>();
-		mPriorities = new HashMap<Runnable, UrlImageLoaderPriority>();
+	private UrlImageLoader(Builder builder) {
+		mRequests = new HashMap<UrlImageCacheKey, UrlImageRequest>();
+		mQueuedRequests = new HashMap<UrlImageRequest, QueuedRequest>();
+		mPending = new ArrayList<LinkedHashMap<String, LinkedList<QueuedRequest>>>();
+		for (int i = 0; i < 2 * UrlImageLoaderPriority.values().length; i++)
+			mPending.add(new LinkedHashMap<String, LinkedList<QueuedRequest>>());
+		mHostFetchCounts = new HashMap<String, Integer>();
+		mMaxFetchCount = builder.mFetchThreadCount;
+		mMaxRequestsPerHost = builder.mMaxRequestsPerHost;
+		mConnectTimeout = builder.mConnectTimeout;
+		mReadTimeout = builder.mReadTimeout;
+		mTimeout = builder.mTimeout;
+		mConfig = builder.mConfig;
+		mOpaqueConfig = builder.mOpaqueConfig;
+		mMaxRetries = builder.mMaxRetries;
+		mRetryBackoffMillis = builder.mRetryBackoffMillis;
+		mRandom = new Random();
+		mTransientFailureMillis = builder.mTransientFailureMillis;
+		mPermanentFailureMillis = builder.mPermanentFailureMillis;
+		mFailures = new LinkedHashMap<String, Long>() {
+			private static final long serialVersionUID = 1L;
 
-		mQueue = new PriorityBlockingQueue<Runnable>(100, new Comparator<Runnable>() {
 			@Override
-			public int compare(Runnable lhs, Runnable rhs) {
-				UrlImageLoaderPriority right = mPriorities.get(rhs);
-				UrlImageLoaderPriority left = mPriorities.get(lhs);
-				if (right == null)
-					return -1;
-				else if (left == null)
-					return 1;
-				else
-					return right.ordinal() - left.ordinal();
+			protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+				return size() > MAX_FAILURES;
 			}
-		});
-		mExecutor = new ThreadPoolExecutor(3, 5, 15, TimeUnit.SECONDS, mQueue);
+		};
+
+		// A pool only starts more than its core threads once its queue is
+		// full, which never happens to an unbounded queue. Make every thread a
+		// core thread that may time out instead, so pools grow while there is
+		// work and shrink when idle. Requests are only handed to the fetch
+		// pool when a thread is free, so its queue stays empty.
+		mFetchExecutor = new ThreadPoolExecutor(builder.mFetchThreadCount,
+				builder.mFetchThreadCount, builder.mKeepAliveMillis, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>());
+		mFetchExecutor.allowCoreThreadTimeOut(true);
+
+		// When the decode queue is full, make the fetch thread wait for room
+		// rather than fetching even more images. It holds on to its fetch slot
+		// while it waits, so no other request is started in its place.
+		mDecodeExecutor = new ThreadPoolExecutor(builder.mDecodeThreadCount,
+				builder.mDecodeThreadCount, builder.mKeepAliveMillis, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(builder.mDecodeQueueSize),
+				new RejectedExecutionHandler() {
+					@Override
+					public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+						try {
+							executor.getQueue().put(task);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							task.run();
+						}
+					}
+				});
+		mDecodeExecutor.allowCoreThreadTimeOut(true);
+
+		mMainHandler = new Handler(Looper.getMainLooper());
+		mFetchCounter = new StageCounter();
+		mDecodeCounter = new StageCounter();
+		mDeliverCounter = new StageCounter();
+		mDeliveries = new ArrayList<DeliveryTask>();
+		mDelivering = new ArrayList<DeliveryTask>();
+		mDeliverRunnable = new Runnable() {
+			@Override
+			public void run() {
+				deliverAll(0);
+			}
+		};
+		if (builder.mFrameAligned && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+			mFrameDelivery = new FrameDelivery(builder.mFrameBudgetNanos);
 
-		mUrlDelegates = new HashMap<String, Set<UrlImageLoaderDelegate>>();
+		mUrlDelegates = new HashMap<UrlImageCacheKey, List<DelegateReference>>();
+		mCollectedDelegates = new ReferenceQueue<UrlImageLoaderDelegate>();
 	}
 
 	/**
-	 * Loads an image from a URL.
+	 * Loads an image from a URL and downsamples it to cover a target size.
 	 * 
 	 * @param url
 	 *            the URL to load the image from. May not be null.
+	 * @param width
+	 *            the width the image will be shown at, or 0 if the width
+	 *            doesn't matter.
+	 * @param height
+	 *            the height the image will be shown at, or 0 if the height
+	 *            doesn't matter.
 	 * @param delegate
 	 *            the delegate to be notified when the request to load this
 	 *            image is complete. May be null.
@@ -139,80 +902,1026 @@ public class UrlImageLoader implements UrlImageRequestDelegate {
 	 *            default priority of {@link UrlImageLoaderPriority#MEDIUM} will
 	 *            be used.
 	 */
-	public synchronized void loadImage(String url, UrlImageLoaderDelegate delegate,
+	public void loadImage(String url, int width, int height, UrlImageLoaderDelegate delegate,
 			UrlImageLoaderPriority priority) {
+		loadImage(url, width, height, delegate, priority, mTimeout);
+	}
+
+	/**
+	 * Loads an image from a URL and downsamples it to cover a target size,
+	 * giving up if the download takes longer than a timeout. If the image is
+	 * already being requested with another timeout and hasn't started
+	 * downloading yet, then the longer timeout is used.
+	 * 
+	 * @param url
+	 *            the URL to load the image from. May not be null.
+	 * @param width
+	 *            the width the image will be shown at, or 0 if the width
+	 *            doesn't matter.
+	 * @param height
+	 *            the height the image will be shown at, or 0 if the height
+	 *            doesn't matter.
+	 * @param delegate
+	 *            the delegate to be notified when the request to load this
+	 *            image is complete. May be null.
+	 * @param priority
+	 *            the priority by which to load this image. If null, then the
+	 *            default priority of {@link UrlImageLoaderPriority#MEDIUM} will
+	 *            be used.
+	 * @param timeout
+	 *            how long downloading the whole image may take in
+	 *            milliseconds, or 0 for no limit. This replaces the timeout
+	 *            set with {@link Builder#setTimeout(int)}.
+	 */
+	public void loadImage(String url, int width, int height, UrlImageLoaderDelegate delegate,
+			UrlImageLoaderPriority priority, int timeout) {
+		loadImage(url, width, height, null, null, delegate, priority, timeout);
+	}
+
+	/**
+	 * Loads an image from a URL, downsamples it to cover a target size and
+	 * decodes it with the given configs. Images decoded with different configs
+	 * are cached separately. The download is given up if it takes longer than
+	 * a timeout. If the image is already being requested with another timeout
+	 * and hasn't started downloading yet, then the longer timeout is used.
+	 * 
+	 * @param url
+	 *            the URL to load the image from. May not be null.
+	 * @param width
+	 *            the width the image will be shown at, or 0 if the width
+	 *            doesn't matter.
+	 * @param height
+	 *            the height the image will be shown at, or 0 if the height
+	 *            doesn't matter.
+	 * @param config
+	 *            the config to decode the image with. If null, then the one
+	 *            set with {@link Builder#setConfig(Bitmap.Config)} is used.
+	 * @param opaqueConfig
+	 *            the config to decode the image with if it can't be
+	 *            transparent. If null, then the one set with
+	 *            {@link Builder#setOpaqueConfig(Bitmap.Config)} is used.
+	 * @param delegate
+	 *            the delegate to be notified when the request to load this
+	 *            image is complete. May be null.
+	 * @param priority
+	 *            the priority by which to load this image. If null, then the
+	 *            default priority of {@link UrlImageLoaderPriority#MEDIUM} will
+	 *            be used.
+	 * @param timeout
+	 *            how long downloading the whole image may take in
+	 *            milliseconds, or 0 for no limit.
+	 */
+	public synchronized void loadImage(String url, int width, int height, Bitmap.Config config,
+			Bitmap.Config opaqueConfig, UrlImageLoaderDelegate delegate,
+			UrlImageLoaderPriority priority, int timeout) {
+		if (timeout < 0)
+			throw new IllegalArgumentException("The timeout can't be negative.");
 
 		if (url == null)
 			return;
 
-		// Use a default priority.
+		// Use a default priority and the configs of the loader.
 		if (priority == null)
 			priority = UrlImageLoaderPriority.MEDIUM;
+		if (config == null)
+			config = mConfig;
+		if (opaqueConfig == null)
+			opaqueConfig = mOpaqueConfig;
 
 		// Load the image from this URL.
-		// Check if we already have a request for the URL.
-		UrlImageRequest request = mRequests.get(url);
+		// Check if we already have a request for the URL at this size.
+		pruneDelegates();
+		UrlImageCacheKey key = UrlImageRequest.getCacheKey(url, width, height, config,
+				opaqueConfig);
+		UrlImageRequest request = mRequests.get(key);
+
+		// Don't try again right away if the image just failed to load.
+		if (request == null && hasFailedRecently(url)) {
+			if (delegate != null)
+				delegate.onLoadImage(this, url, null);
+			return;
+		}
+
+		// A request that only stores the image on disk can't be shared, so
+		// replace it. If it is already downloading, let it finish.
+		if (request != null && request.isFetchOnly()) {
+			QueuedRequest queued = mQueuedRequests.remove(request);
+			if (queued != null && removePending(queued))
+				request.cancel();
+			request = null;
+		}
 
 		if (request == null) {
 
 			// We aren't already requesting the URL.
 			// Create a new request and put it in the queue.
-			request = new UrlImageRequest(url);
-			request.setDelegate(this);
-			Set<UrlImageLoaderDelegate> delegates = new HashSet<UrlImageLoaderDelegate>();
-			mUrlDelegates.put(url, delegates);
-			if (delegate != null)
-				delegates.add(delegate);
-			mRequests.put(url, request);
-			mPriorities.put(request, priority);
-			mExecutor.execute(request);
+			request = newRequest(url, width, height, config, opaqueConfig);
+			request.setTimeout(timeout);
+			mUrlDelegates.put(key, new ArrayList<DelegateReference>(1));
+			addDelegate(key, delegate);
+			mRequests.put(key, request);
+			enqueue(request, priority);
 
 		} else if (request.getBitmap() == null) {
 
 			// We already have a request, but it hasn't finished yet.
-			// If this priority is higher than the previous priority, then
-			// change the priority of the old request.
-			// Also, add the new delegate for this request.
-			int newPriorityOrdinal = Math.max(priority.ordinal(), mPriorities.get(request)
-					.ordinal());
-			UrlImageLoaderPriority newPriority = UrlImageLoaderPriority.values()[newPriorityOrdinal];
-			mPriorities.put(request, newPriority);
-			if (delegate != null)
-				mUrlDelegates.get(url).add(delegate);
+			// If this priority is higher than the previous priority, or the
+			// request was a prefetch, and the request is still in the queue,
+			// then queue it again with the new priority so it moves ahead.
+			// Also, use the longer timeout and add the new delegate.
+			QueuedRequest queued = mQueuedRequests.get(request);
+			if (queued != null && !queued.running)
+				request.setTimeout(getLongerTimeout(request.getTimeout(), timeout));
+			if (queued != null && (queued.prefetch || priority.compareTo(queued.priority) > 0)
+					&& removePending(queued))
+				enqueue(request, priority);
+			addDelegate(key, delegate);
 
 		} else if (delegate != null) {
 
 			// We already requested this image and it has already completed.
 			// Notify the delegate that the request is complete.
-			delegate.onLoadImage(this, url, request.getBitmap());
+			notifyDelegate(delegate, request);
 		}
 	}
 
 	/**
-	 * Loads an image from a URL with a default priority of
-	 * {@link UrlImageLoaderPriority#MEDIUM}.
-	 * 
-	 * @param url
-	 *            the URL to load the image from. May not be null.
-	 * @param delegate
-	 *            the delegate to be notified when the request to load this
-	 *            image is complete. May be null.
+	 * @param first
+	 *            a timeout, or 0 for no limit.
+	 * @param second
+	 *            another timeout, or 0 for no limit.
+	 * @return the longer of the timeouts.
 	 */
-	public void loadImage(String url, UrlImageLoaderDelegate delegate) {
-		loadImage(url, delegate, null);
+	private static int getLongerTimeout(int first, int second) {
+		return first == 0 || second == 0 ? 0 : Math.max(first, second);
 	}
 
-	@Override
+	/**
+	 * Adds a delegate to be notified about the image for a key, unless it is
+	 * already waiting for it. This must be called while holding the lock.
+	 * 
+	 * @param key
+	 *            the cache key of the image.
+	 * @param delegate
+	 *            the delegate to add. May be null.
+	 */
+	private void addDelegate(UrlImageCacheKey key, UrlImageLoaderDelegate delegate) {
+		if (delegate == null)
+			return;
+
+		// Prefetched requests start without any delegates.
+		List<DelegateReference> delegates = mUrlDelegates.get(key);
+		if (delegates == null) {
+			delegates = new ArrayList<DelegateReference>(1);
+			mUrlDelegates.put(key, delegates);
+		}
+		for (int i = 0; i < delegates.size(); i++) {
+			if (delegates.get(i).get() == delegate)
+				return;
+		}
+		delegates.add(new DelegateReference(delegate, key, mCollectedDelegates));
+	}
+
+	/**
+	 * Forgets the delegates that have been garbage collected, and cancels the
+	 * requests that nobody is waiting for anymore. This must be called while
+	 * holding the lock.
+	 */
+	private void pruneDelegates() {
+		Reference<? extends UrlImageLoaderDelegate> collected;
+		while ((collected = mCollectedDelegates.poll()) != null) {
+			DelegateReference reference = (DelegateReference) collected;
+			List<DelegateReference> delegates = mUrlDelegates.get(reference.key);
+			if (delegates != null && delegates.remove(reference) && delegates.isEmpty())
+				cancelRequest(reference.key);
+		}
+	}
+
+	/**
+	 * Schedules a request that failed to be queued again if it may work later.
+	 * 
+	 * @param queued
+	 *            the request that was just fetched.
+	 * @return true if the request will be retried, false if it should go on
+	 *         to the next stage.
+	 */
+	private boolean retryLater(final QueuedRequest queued) {
+		final UrlImageRequest request = queued.request;
+		if (queued.attempt >= mMaxRetries || !request.isRetryable())
+			return false;
+
+		// Add jitter, so requests that failed together don't retry together.
+		long backoff = mRetryBackoffMillis << queued.attempt;
+		long delay = backoff / 2 + (long) (mRandom.nextDouble() * backoff);
+		delay = Math.max(delay, request.getRetryAfter());
+		if (delay > MAX_RETRY_DELAY)
+			return false;
+
+		mMainHandler.postDelayed(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (UrlImageLoader.this) {
+
+					// The request may have been cancelled in the meantime.
+					if (request.isCancelled() || mQueuedRequests.get(request) != queued)
+						return;
+
+					enqueue(request, queued.priority, queued.attempt + 1, queued.prefetch);
+				}
+			}
+		}, delay);
+		return true;
+	}
+
+	/**
+	 * Checks whether a URL failed to load recently. This must be called while
+	 * holding the lock.
+	 * 
+	 * @param url
+	 *            the URL of the image.
+	 * @return true if the URL shouldn't be requested again yet.
+	 */
+	private boolean hasFailedRecently(String url) {
+		Long retryAt = mFailures.get(url);
+		if (retryAt == null)
+			return false;
+
+		if (SystemClock.elapsedRealtime() < retryAt)
+			return true;
+
+		mFailures.remove(url);
+		return false;
+	}
+
+	/**
+	 * Remembers that a request failed, so its URL isn't requested again for a
+	 * while. Only the most recent failures are remembered. This must be called
+	 * while holding the lock.
+	 * 
+	 * @param request
+	 *            the request that failed.
+	 */
+	private void addFailure(UrlImageRequest request) {
+		long timeout = request.isRetryable() ? mTransientFailureMillis : mPermanentFailureMillis;
+		if (timeout <= 0)
+			return;
+
+		// Move the URL to the newest end, so it's forgotten last.
+		mFailures.remove(request.getUrl());
+		mFailures.put(request.getUrl(), SystemClock.elapsedRealtime() + timeout);
+	}
+
+	/**
+	 * Forgets all the URLs that failed to load, so they will be requested
+	 * again the next time they are loaded.
+	 */
+	public synchronized void clearFailures() {
+		mFailures.clear();
+	}
+
+	/**
+	 * Creates a request that notifies this loader and uses its timeouts.
+	 * 
+	 * @param url
+	 *            the URL of the image.
+	 * @param width
+	 *            the target width, or 0 if the width doesn't matter.
+	 * @param height
+	 *            the target height, or 0 if the height doesn't matter.
+	 * @param config
+	 *            the config to decode the image with.
+	 * @param opaqueConfig
+	 *            the config to decode the image with if it can't be
+	 *            transparent.
+	 * @return the new request.
+	 */
+	private UrlImageRequest newRequest(String url, int width, int height, Bitmap.Config config,
+			Bitmap.Config opaqueConfig) {
+		UrlImageRequest request = new UrlImageRequest(url, width, height, this);
+		request.setConnectTimeout(mConnectTimeout);
+		request.setReadTimeout(mReadTimeout);
+		request.setTimeout(mTimeout);
+		request.setConfig(config);
+		request.setOpaqueConfig(opaqueConfig);
+		return request;
+	}
+
+	/**
+	 * @return how long downloading a whole image may take in milliseconds,
+	 *         unless a request is given its own timeout. 0 if there is no
+	 *         limit.
+	 */
+	int getTimeout() {
+		return mTimeout;
+	}
+
+	/**
+	 * Creates the key under which an image is cached, using the configs of
+	 * this loader for the ones that are null.
+	 * 
+	 * @param url
+	 *            the URL of the image.
+	 * @param width
+	 *            the target width, or 0 if the width doesn't matter.
+	 * @param height
+	 *            the target height, or 0 if the height doesn't matter.
+	 * @param config
+	 *            the config the image is decoded with, or null.
+	 * @param opaqueConfig
+	 *            the config the image is decoded with if it can't be
+	 *            transparent, or null.
+	 * @return the cache key for the image.
+	 */
+	UrlImageCacheKey getCacheKey(String url, int width, int height, Bitmap.Config config,
+			Bitmap.Config opaqueConfig) {
+		return UrlImageRequest.getCacheKey(url, width, height, config != null ? config : mConfig,
+				opaqueConfig != null ? opaqueConfig : mOpaqueConfig);
+	}
+
+	/**
+	 * Puts a request in the queue with a priority. This must be called while
+	 * holding the lock.
+	 * 
+	 * @param request
+	 *            the request to run.
+	 * @param priority
+	 *            the priority of the request.
+	 */
+	private void enqueue(UrlImageRequest request, UrlImageLoaderPriority priority) {
+		enqueue(request, priority, 0, false);
+	}
+
+	/**
+	 * Puts a request in the queue with a priority. This must be called while
+	 * holding the lock.
+	 * 
+	 * @param request
+	 *            the request to run.
+	 * @param priority
+	 *            the priority of the request.
+	 * @param attempt
+	 *            how many times the request has been tried before.
+	 * @param prefetch
+	 *            true if the request is a prefetch, which waits for all other
+	 *            requests.
+	 */
+	private void enqueue(UrlImageRequest request, UrlImageLoaderPriority priority, int attempt,
+			boolean prefetch) {
+		QueuedRequest queued = new QueuedRequest(request, priority, attempt, prefetch);
+		mQueuedRequests.put(request, queued);
+
+		LinkedHashMap<String, LinkedList<QueuedRequest>> hosts = getPending(queued);
+		LinkedList<QueuedRequest> hostQueue = hosts.get(queued.host);
+		if (hostQueue == null) {
+			hostQueue = new LinkedList<QueuedRequest>();
+			hosts.put(queued.host, hostQueue);
+		}
+		hostQueue.add(queued);
+		mPendingCount++;
+
+		startFetching();
+	}
+
+	/**
+	 * Removes a request that is waiting to be fetched. This must be called
+	 * while holding the lock.
+	 * 
+	 * @param queued
+	 *            the request to remove.
+	 * @return true if the request was waiting, false if it is already being
+	 *         fetched.
+	 */
+	private boolean removePending(QueuedRequest queued) {
+		if (queued.running)
+			return false;
+
+		LinkedHashMap<String, LinkedList<QueuedRequest>> hosts = getPending(queued);
+		LinkedList<QueuedRequest> hostQueue = hosts.get(queued.host);
+		if (hostQueue == null || !hostQueue.remove(queued))
+			return false;
+
+		if (hostQueue.isEmpty())
+			hosts.remove(queued.host);
+		mPendingCount--;
+		return true;
+	}
+
+	/**
+	 * @param queued
+	 *            a request.
+	 * @return the requests waiting to be fetched with the same priority as the
+	 *         request, by host.
+	 */
+	private LinkedHashMap<String, LinkedList<QueuedRequest>> getPending(QueuedRequest queued) {
+		int count = UrlImageLoaderPriority.values().length;
+		int index = count - 1 - queued.priority.ordinal();
+		return mPending.get(queued.prefetch ? count + index : index);
+	}
+
+	/**
+	 * Hands waiting requests to the fetch threads while there are free threads
+	 * and requests whose hosts aren't busy. This must be called while holding
+	 * the lock.
+	 */
+	private void startFetching() {
+		if (mPaused)
+			return;
+
+		while (mFetchCount < mMaxFetchCount && mPendingCount > 0) {
+			QueuedRequest next = takeNextPending();
+			if (next == null)
+				return;
+
+			next.running = true;
+			mFetchCount++;
+			Integer hostCount = mHostFetchCounts.get(next.host);
+			mHostFetchCounts.put(next.host, hostCount == null ? 1 : hostCount + 1);
+			mFetchExecutor.execute(next);
+		}
+	}
+
+	/**
+	 * Takes the next request to fetch. This is the first request of the first
+	 * host that isn't busy, in the highest priority that has one. That host
+	 * then goes to the back of the line for its priority. In last in, first
+	 * out order, it is the newest request of a host that isn't busy instead.
+	 * 
+	 * @return the next request to fetch, or null if every waiting request is
+	 *         for a busy host.
+	 */
+	private QueuedRequest takeNextPending() {
+		for (LinkedHashMap<String, LinkedList<QueuedRequest>> hosts : mPending) {
+			if (mLastInFirstOut) {
+				QueuedRequest next = takeNewestPending(hosts);
+				if (next != null)
+					return next;
+				continue;
+			}
+
+			Iterator<Map.Entry<String, LinkedList<QueuedRequest>>> iterator = hosts.entrySet()
+					.iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<String, LinkedList<QueuedRequest>> entry = iterator.next();
+				Integer hostCount = mHostFetchCounts.get(entry.getKey());
+				if (hostCount != null && hostCount >= mMaxRequestsPerHost)
+					continue;
+
+				iterator.remove();
+				LinkedList<QueuedRequest> hostQueue = entry.getValue();
+				QueuedRequest next = hostQueue.removeFirst();
+				if (!hostQueue.isEmpty())
+					hosts.put(entry.getKey(), hostQueue);
+				mPendingCount--;
+				return next;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Takes the most recently queued request of a priority whose host isn't
+	 * busy.
+	 * 
+	 * @param hosts
+	 *            the requests waiting with a priority, by host.
+	 * @return the newest request, or null if every request is for a busy host.
+	 */
+	private QueuedRequest takeNewestPending(LinkedHashMap<String, LinkedList<QueuedRequest>> hosts) {
+		String newestHost = null;
+		QueuedRequest newest = null;
+		for (Map.Entry<String, LinkedList<QueuedRequest>> entry : hosts.entrySet()) {
+			Integer hostCount = mHostFetchCounts.get(entry.getKey());
+			if (hostCount != null && hostCount >= mMaxRequestsPerHost)
+				continue;
+
+			QueuedRequest last = entry.getValue().getLast();
+			if (newest == null || last.queuedAt - newest.queuedAt > 0) {
+				newest = last;
+				newestHost = entry.getKey();
+			}
+		}
+		if (newest == null)
+			return null;
+
+		LinkedList<QueuedRequest> hostQueue = hosts.get(newestHost);
+		hostQueue.removeLast();
+		if (hostQueue.isEmpty())
+			hosts.remove(newestHost);
+		mPendingCount--;
+		return newest;
+	}
+
+	/**
+	 * Stops starting new downloads, for example while a list is being flung.
+	 * Downloads that are already running will finish. Images can still be
+	 * requested and cancelled while the loader is paused, so requests for
+	 * views that scroll by are dropped before they ever start.
+	 */
+	public synchronized void pause() {
+		mPaused = true;
+	}
+
+	/**
+	 * Starts downloading images again after {@link #pause()}.
+	 */
+	public synchronized void resume() {
+		mPaused = false;
+		pruneDelegates();
+		startFetching();
+	}
+
+	/**
+	 * @return true if the loader has been paused.
+	 */
+	public synchronized boolean isPaused() {
+		return mPaused;
+	}
+
+	/**
+	 * Sets the order in which requests of the same priority are started. In a
+	 * list, the most recently requested images are usually the ones that are
+	 * visible, so starting them first shows them sooner. By default, requests
+	 * are started in the order they were made.
+	 * 
+	 * @param lastInFirstOut
+	 *            true to start the most recent requests first.
+	 */
+	public synchronized void setLastInFirstOut(boolean lastInFirstOut) {
+		mLastInFirstOut = lastInFirstOut;
+	}
+
+	/**
+	 * Called on a fetch thread once a request has been fetched and handed on
+	 * to the next stage, so that the next request can start.
+	 * 
+	 * @param queued
+	 *            the request that was fetched.
+	 */
+	private synchronized void onFetchFinished(QueuedRequest queued) {
+		mFetchCount--;
+		Integer hostCount = mHostFetchCounts.get(queued.host);
+		if (hostCount == null || hostCount <= 1)
+			mHostFetchCounts.remove(queued.host);
+		else
+			mHostFetchCounts.put(queued.host, hostCount - 1);
+
+		// Don't start requests for delegates that are gone.
+		pruneDelegates();
+		startFetching();
+	}
+
+	/**
+	 * Hands a fetched request to the decode stage.
+	 * 
+	 * @param request
+	 *            the request whose image has been fetched.
+	 * @param priority
+	 *            the priority the request was queued with.
+	 */
+	private void decode(final UrlImageRequest request, final UrlImageLoaderPriority priority) {
+		mDecodeExecutor.execute(new StageTask(mDecodeCounter) {
+			@Override
+			void runStage() {
+				try {
+					request.decode();
+				} catch (RuntimeException e) {
+					request.fail(e);
+				}
+				deliver(request, priority);
+			}
+		});
+	}
+
+	/**
+	 * Hands a finished request to the deliver stage, which notifies the
+	 * delegates on the main thread. Only the first request that finishes
+	 * after a delivery posts a message. The ones after it join its batch.
+	 * 
+	 * @param request
+	 *            the request that has finished.
+	 * @param priority
+	 *            the priority the request was queued with.
+	 */
+	private void deliver(UrlImageRequest request, UrlImageLoaderPriority priority) {
+		DeliveryTask task = new DeliveryTask(mDeliverCounter, request, priority);
+		synchronized (mDeliveries) {
+			mDeliveries.add(task);
+			scheduleDelivery();
+		}
+	}
+
+	/**
+	 * Posts a message to deliver the finished requests, unless one is already
+	 * waiting. This must be called while holding the lock of mDeliveries.
+	 */
+	private void scheduleDelivery() {
+		if (mDeliveryPosted)
+			return;
+
+		mDeliveryPosted = true;
+		if (mFrameDelivery != null) {
+			mMainHandler.post(mFrameDelivery);
+			return;
+		}
+
+		// Wait for the next frame if we delivered during this one.
+		long delay = mLastDeliveryTime + FRAME_MILLIS - SystemClock.uptimeMillis();
+		if (delay > 0)
+			mMainHandler.postDelayed(mDeliverRunnable, delay);
+		else
+			mMainHandler.post(mDeliverRunnable);
+	}
+
+	/**
+	 * Notifies the delegates of the requests that have finished since the last
+	 * delivery, highest priority first. This runs on the main thread.
+	 * 
+	 * @param budgetNanos
+	 *            how long notifying the delegates may take, or 0 for no limit.
+	 *            The requests that are left over are delivered next time.
+	 */
+	private void deliverAll(long budgetNanos) {
+		ArrayList<DeliveryTask> tasks;
+		synchronized (mDeliveries) {
+			tasks = mDeliveries;
+			mDeliveries = mDelivering;
+			mDelivering = tasks;
+			mDeliveryPosted = false;
+			mLastDeliveryTime = SystemClock.uptimeMillis();
+		}
+
+		// The sort is stable, so requests of the same priority are delivered
+		// in the order they finished. Always deliver at least one request, so
+		// a slow delegate can't hold up delivery forever.
+		Collections.sort(tasks, DELIVERY_ORDER);
+		long start = System.nanoTime();
+		int delivered = 0;
+		while (delivered < tasks.size()
+				&& (delivered == 0 || budgetNanos <= 0 || System.nanoTime() - start < budgetNanos))
+			tasks.get(delivered++).run();
+
+		// Put the rest in front of the requests that finished since.
+		if (delivered < tasks.size()) {
+			List<DeliveryTask> deferred = tasks.subList(delivered, tasks.size());
+			synchronized (mDeliveries) {
+				mDeliveries.addAll(0, deferred);
+				mDeferredDeliveryCount += deferred.size();
+				scheduleDelivery();
+			}
+		}
+		tasks.clear();
+	}
+
+	/**
+	 * @return how many times a finished request had to wait for another frame
+	 *         because the frame budget was used up. This only happens with
+	 *         frame aligned delivery.
+	 */
+	public long getDeferredDeliveryCount() {
+		synchronized (mDeliveries) {
+			return mDeferredDeliveryCount;
+		}
+	}
+
+	/**
+	 * Returns how requests have moved through a stage so far. This can be used
+	 * to find out where the time goes when loading many images.
+	 * 
+	 * @param stage
+	 *            the stage to look at.
+	 * @return a snapshot of the stage.
+	 */
+	public UrlImageLoaderStageStats getStageStats(UrlImageLoaderStage stage) {
+		StageCounter counter;
+		int queueDepth;
+		switch (stage) {
+		case FETCH:
+			counter = mFetchCounter;
+			synchronized (this) {
+				queueDepth = mPendingCount;
+			}
+			break;
+		case DECODE:
+			counter = mDecodeCounter;
+			queueDepth = mDecodeExecutor.getQueue().size();
+			break;
+		default:
+			counter = mDeliverCounter;
+			queueDepth = counter.pending.get();
+			break;
+		}
+
+		return new UrlImageLoaderStageStats(queueDepth, counter.completed.get(),
+				counter.waitNanos.get(), counter.runNanos.get());
+	}
+
+	/**
+	 * Loads an image from a URL.
+	 * 
+	 * @param url
+	 *            the URL to load the image from. May not be null.
+	 * @param delegate
+	 *            the delegate to be notified when the request to load this
+	 *            image is complete. May be null.
+	 * @param priority
+	 *            the priority by which to load this image. If null, then the
+	 *            default priority of {@link UrlImageLoaderPriority#MEDIUM} will
+	 *            be used.
+	 */
+	public void loadImage(String url, UrlImageLoaderDelegate delegate,
+			UrlImageLoaderPriority priority) {
+		loadImage(url, 0, 0, delegate, priority);
+	}
+
+	/**
+	 * Loads an image from a URL and downsamples it to cover a target size,
+	 * with a default priority of {@link UrlImageLoaderPriority#MEDIUM}.
+	 * 
+	 * @param url
+	 *            the URL to load the image from. May not be null.
+	 * @param width
+	 *            the width the image will be shown at, or 0 if the width
+	 *            doesn't matter.
+	 * @param height
+	 *            the height the image will be shown at, or 0 if the height
+	 *            doesn't matter.
+	 * @param delegate
+	 *            the delegate to be notified when the request to load this
+	 *            image is complete. May be null.
+	 */
+	public void loadImage(String url, int width, int height, UrlImageLoaderDelegate delegate) {
+		loadImage(url, width, height, delegate, null);
+	}
+
+	/**
+	 * Loads an image from a URL with a default priority of
+	 * {@link UrlImageLoaderPriority#MEDIUM}.
+	 * 
+	 * @param url
+	 *            the URL to load the image from. May not be null.
+	 * @param delegate
+	 *            the delegate to be notified when the request to load this
+	 *            image is complete. May be null.
+	 */
+	public void loadImage(String url, UrlImageLoaderDelegate delegate) {
+		loadImage(url, delegate, null);
+	}
+
+	/**
+	 * Loads images ahead of time, so they are ready when they are shown. The
+	 * images are queued behind every request made with {@link #loadImage},
+	 * whatever their priority. Images that are already cached in memory,
+	 * being loaded or failed recently are skipped. Nobody is notified when
+	 * the images have loaded.
+	 * 
+	 * @param urls
+	 *            the URLs of the images to load.
+	 * @param priority
+	 *            the order in which prefetched images are loaded among each
+	 *            other. If null, then the default is
+	 *            {@link UrlImageLoaderPriority#MEDIUM}.
+	 * @param options
+	 *            how to prefetch the images. If null, then the images are
+	 *            decoded at their original size.
+	 */
+	public synchronized void prefetch(Collection<String> urls, UrlImageLoaderPriority priority,
+			PrefetchOptions options) {
+		if (priority == null)
+			priority = UrlImageLoaderPriority.MEDIUM;
+		if (options == null)
+			options = new PrefetchOptions();
+
+		pruneDelegates();
+		UrlImageCache cache = UrlImageCache.getInstance();
+		for (String url : urls) {
+			if (url == null)
+				continue;
+
+			Bitmap.Config config = options.mConfig != null ? options.mConfig : mConfig;
+			Bitmap.Config opaqueConfig = options.mOpaqueConfig != null ? options.mOpaqueConfig
+					: mOpaqueConfig;
+			UrlImageCacheKey key = UrlImageRequest.getCacheKey(url, options.mWidth,
+					options.mHeight, config, opaqueConfig);
+			if (mRequests.containsKey(key) || cache.hasImage(key)
+					|| hasFailedRecently(url))
+				continue;
+
+			// Delegates are only added once someone loads the image.
+			UrlImageRequest request = newRequest(url, options.mWidth, options.mHeight, config,
+					opaqueConfig);
+			request.setFetchOnly(options.mFetchOnly);
+			mRequests.put(key, request);
+			enqueue(request, priority, 0, true);
+		}
+	}
+
+	/**
+	 * Loads images ahead of time with a default priority of
+	 * {@link UrlImageLoaderPriority#MEDIUM}, decoded at their original size.
+	 * 
+	 * @param urls
+	 *            the URLs of the images to load.
+	 */
+	public void prefetch(Collection<String> urls) {
+		prefetch(urls, null, null);
+	}
+
+	/**
+	 * Loads an image from a URL and returns a future for it, instead of
+	 * notifying a delegate.
+	 * 
+	 * @param url
+	 *            the URL to load the image from. May not be null.
+	 * @param width
+	 *            the width the image will be shown at, or 0 if it doesn't
+	 *            matter.
+	 * @param height
+	 *            the height the image will be shown at, or 0 if it doesn't
+	 *            matter.
+	 * @param priority
+	 *            the priority for loading this image. If null, then the
+	 *            default is {@link UrlImageLoaderPriority#MEDIUM}.
+	 * @return a future for the image. Cancelling it cancels the request if
+	 *         nothing else is waiting for the image.
+	 */
+	public UrlImageFuture loadImageFuture(String url, int width, int height,
+			UrlImageLoaderPriority priority) {
+		UrlImageFuture future = new UrlImageFuture(this, url, width, height);
+		if (url == null)
+			future.onLoadImage(this, url, null);
+		else
+			loadImage(url, width, height, future, priority);
+		return future;
+	}
+
+	/**
+	 * Loads an image from a URL with a default priority of
+	 * {@link UrlImageLoaderPriority#MEDIUM} and returns a future for it.
+	 * 
+	 * @param url
+	 *            the URL to load the image from. May not be null.
+	 * @param width
+	 *            the width the image will be shown at, or 0 if it doesn't
+	 *            matter.
+	 * @param height
+	 *            the height the image will be shown at, or 0 if it doesn't
+	 *            matter.
+	 * @return a future for the image.
+	 */
+	public UrlImageFuture loadImageFuture(String url, int width, int height) {
+		return loadImageFuture(url, width, height, null);
+	}
+
+	/**
+	 * Loads an image from a URL with a default priority of
+	 * {@link UrlImageLoaderPriority#MEDIUM} and returns a future for it.
+	 * 
+	 * @param url
+	 *            the URL to load the image from. May not be null.
+	 * @return a future for the image.
+	 */
+	public UrlImageFuture loadImageFuture(String url) {
+		return loadImageFuture(url, 0, 0, null);
+	}
+
+	/**
+	 * Stops notifying a delegate about an image requested with
+	 * {@link #loadImage(String, int, int, UrlImageLoaderDelegate)}. If no other
+	 * delegates are waiting for the image, then the request is cancelled.
+	 * 
+	 * @param url
+	 *            the URL the image was requested from.
+	 * @param width
+	 *            the width the image was requested at.
+	 * @param height
+	 *            the height the image was requested at.
+	 * @param delegate
+	 *            the delegate that no longer needs the image. If null, then
+	 *            the request is only cancelled if it has no delegates.
+	 */
+	public void cancel(String url, int width, int height, UrlImageLoaderDelegate delegate) {
+		cancel(url, width, height, null, null, delegate);
+	}
+
+	/**
+	 * Stops notifying a delegate about an image requested with configs. If no
+	 * other delegates are waiting for the image, then the request is
+	 * cancelled.
+	 * 
+	 * @param url
+	 *            the URL the image was requested from.
+	 * @param width
+	 *            the width the image was requested at.
+	 * @param height
+	 *            the height the image was requested at.
+	 * @param config
+	 *            the config the image was requested with, or null for the
+	 *            config of the loader.
+	 * @param opaqueConfig
+	 *            the opaque config the image was requested with, or null for
+	 *            the opaque config of the loader.
+	 * @param delegate
+	 *            the delegate that no longer needs the image. If null, then
+	 *            the request is only cancelled if it has no delegates.
+	 */
+	public synchronized void cancel(String url, int width, int height, Bitmap.Config config,
+			Bitmap.Config opaqueConfig, UrlImageLoaderDelegate delegate) {
+		if (url == null)
+			return;
+
+		pruneDelegates();
+		UrlImageCacheKey key = getCacheKey(url, width, height, config, opaqueConfig);
+		List<DelegateReference> delegates = mUrlDelegates.get(key);
+		if (delegates == null)
+			return;
+
+		// Collected delegates can go too.
+		Iterator<DelegateReference> iterator = delegates.iterator();
+		while (iterator.hasNext()) {
+			UrlImageLoaderDelegate waiting = iterator.next().get();
+			if (waiting == null || waiting == delegate)
+				iterator.remove();
+		}
+		if (delegates.isEmpty())
+			cancelRequest(key);
+	}
+
+	/**
+	 * Cancels the request for a key, because nobody wants the image anymore.
+	 * The request is taken out of the queue, or stopped if it is already
+	 * running. This must be called while holding the lock.
+	 * 
+	 * @param key
+	 *            the cache key of the image.
+	 */
+	private void cancelRequest(UrlImageCacheKey key) {
+		UrlImageRequest request = mRequests.remove(key);
+		mUrlDelegates.remove(key);
+		if (request != null) {
+			QueuedRequest queued = mQueuedRequests.remove(request);
+			if (queued != null)
+				removePending(queued);
+			request.cancel();
+		}
+	}
+
+	/**
+	 * Stops notifying a delegate about an image requested with
+	 * {@link #loadImage(String, UrlImageLoaderDelegate)}. If no other delegates
+	 * are waiting for the image, then the request is cancelled.
+	 * 
+	 * @param url
+	 *            the URL the image was requested from.
+	 * @param delegate
+	 *            the delegate that no longer needs the image. If null, then
+	 *            the request is only cancelled if it has no delegates.
+	 */
+	public void cancel(String url, UrlImageLoaderDelegate delegate) {
+		cancel(url, 0, 0, delegate);
+	}
+
+	@Override
 	public void onLoadImage(UrlImageRequest request) {
 
-		// The request finished. Notify all the delegates.
-		mRequests.remove(request.getUrl());
-		mPriorities.remove(request);
-		Set<UrlImageLoaderDelegate> delegates = mUrlDelegates.remove(request.getUrl());
+		// The request finished. If it was replaced by a newer request for the
+		// same image, then the newer request will notify the delegates.
+		List<DelegateReference> delegates;
+		synchronized (this) {
+			if (mRequests.get(request.getCacheKey()) != request)
+				return;
+
+			mRequests.remove(request.getCacheKey());
+			mQueuedRequests.remove(request);
+			delegates = mUrlDelegates.remove(request.getCacheKey());
+			if (request.hasFailed())
+				addFailure(request);
+		}
+
+		// Notify all the delegates.
 
 		if (delegates != null) {
-			for (UrlImageLoaderDelegate delegate : delegates)
-				delegate.onLoadImage(this, request.getUrl(), request.getBitmap());
+			for (DelegateReference reference : delegates) {
+				UrlImageLoaderDelegate delegate = reference.get();
+				if (delegate != null)
+					notifyDelegate(delegate, request);
+			}
 		}
 	}
+
+	/**
+	 * Gives the image of a finished request to a delegate. Only a
+	 * {@link UrlImageView} tells the {@link UrlImageBitmapPool} when it stops
+	 * showing an image. Any other delegate may keep the image, so it is never
+	 * decoded into.
+	 * 
+	 * @param delegate
+	 *            the delegate to notify.
+	 * @param request
+	 *            the request that finished.
+	 */
+	private void notifyDelegate(UrlImageLoaderDelegate delegate, UrlImageRequest request) {
+		if (!(delegate instanceof UrlImageView))
+			UrlImageBitmapPool.getInstance().share(request.getBitmap());
+		delegate.onLoadImage(this, request.getUrl(), request.getBitmap());
+	}
 }
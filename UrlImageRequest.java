@@ -6,18 +6,31 @@
 
 package com.timahoney.urlimage;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
+import com.timahoney.urlimage.UrlImageDiskCache.Validators;
+
 /**
  * A class that loads images from a URL.
  * <p>
@@ -31,11 +44,106 @@ import android.util.Log;
  * {@link UrlImageRequestDelegate}.
  * <p>
  * This class will check the UrlImageCache to see if the image has already been
- * loaded and cached.
+ * loaded and cached. If the cache has a {@link UrlImageDiskCache}, then the
+ * image will be loaded from disk before going to the network, and downloaded
+ * images will be stored on disk.
+ * <p>
+ * The caching headers of the response are respected. Images are stored with
+ * the time they expire according to Cache-Control or Expires, and with their
+ * ETag and Last-Modified validators. Until it expires, a cached image is used
+ * without going to the network. After that, the server is asked whether the
+ * image has changed. If it hasn't, then the cached copy is used again and only
+ * its expiration time is updated. If the server can't be reached, then the
+ * expired image is used anyway. The validators are only kept on disk, so
+ * without a {@link UrlImageDiskCache}, images in memory don't expire. Images
+ * sent with "Cache-Control: no-store" are never stored on disk, so they are
+ * only kept in memory and don't expire either.
+ * <p>
+ * A request can have a target width and height. If it does, then the image will
+ * be downsampled while decoding so that it is no larger than needed to cover
+ * the target size. Images of different target sizes are cached separately.
+ * Target sizes are rounded up to a multiple of {@link #SIZE_BUCKET} pixels, so
+ * views of nearly the same size share an image. If the image isn't cached at
+ * its own size, but it is cached at a larger size, then the larger image is
+ * scaled down instead of reading and decoding the image again.
+ * <p>
+ * Images are decoded with {@link Bitmap.Config#ARGB_8888} by default. Use
+ * {@link #setConfig(Bitmap.Config)} to change that, and
+ * {@link #setOpaqueConfig(Bitmap.Config)} to use another config for images
+ * that can't be transparent, such as JPEGs. Decoding those with
+ * {@link Bitmap.Config#RGB_565} halves their memory use. Images decoded with
+ * other configs than the defaults are cached separately.
+ * <p>
+ * A request can be made to only store the image in the disk cache, without
+ * decoding it, using {@link #setFetchOnly(boolean)}. This is useful for
+ * prefetching images that will be needed soon.
+ * <p>
+ * A request can be cancelled with {@link #cancel()}. If it is downloading, then
+ * the download is aborted. A cancelled request won't notify its delegate.
+ * <p>
+ * Downloads have a connect timeout, a read timeout for each read from the
+ * connection and a timeout for the whole download, so a server that stops
+ * responding can't hold on to a thread. The whole download is watched by a
+ * single timer thread shared by all requests, which aborts the download like
+ * {@link #cancel()} does. A request that timed out notifies its delegate
+ * without an image.
+ * <p>
+ * If a download fails in a way that may work if it is tried again, such as a
+ * network error, a timeout or a 5xx, 408 or 429 response, then
+ * {@link #isRetryable()} returns true. Running out of memory counts too. Any
+ * other failure, like a 404 response or data that can't be decoded, is
+ * permanent. The request doesn't retry by itself,
+ * but {@link UrlImageLoader} runs it again after a delay.
  */
 public class UrlImageRequest implements Runnable {
 	private static final String DEBUG_TAG = "UrlImageRequest";
 
+	// The amount of memory, in kilobytes, that bitmaps being decoded at the
+	// same time may use.
+	private static final int DECODE_BUDGET_KB = (int) Math.min(Integer.MAX_VALUE, Runtime
+			.getRuntime().maxMemory() / 4 / 1024);
+	private static final Semaphore sDecodePermits = new Semaphore(DECODE_BUDGET_KB, true);
+
+	static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+	static final int DEFAULT_READ_TIMEOUT = 10000;
+	static final int DEFAULT_TIMEOUT = 30000;
+
+	// Cancelled watchdog tasks are purged from the timer after this many.
+	private static final int WATCHDOG_PURGE_INTERVAL = 64;
+
+	private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+	/**
+	 * The amount of pixels target sizes are rounded up to a multiple of.
+	 */
+	public static final int SIZE_BUCKET = 32;
+
+	private static Timer sWatchdog;
+	private static final AtomicInteger sCancelledWatchdogs = new AtomicInteger();
+	private static Handler sMainHandler;
+
+	/**
+	 * Aborts a download that took too long. It only holds the request weakly,
+	 * so a finished request isn't kept alive by a cancelled task waiting in
+	 * the timer's queue.
+	 */
+	private static class Watchdog extends TimerTask {
+		private final WeakReference<UrlImageRequest> mRequest;
+
+		Watchdog(UrlImageRequest request) {
+			mRequest = new WeakReference<UrlImageRequest>(request);
+		}
+
+		@Override
+		public void run() {
+			UrlImageRequest request = mRequest.get();
+			if (request != null) {
+				request.mTimedOut = true;
+				request.abort();
+			}
+		}
+	}
+
 	/**
 	 * A delegate to be notified when the image request has completed.
 	 */
@@ -52,22 +160,51 @@ public class UrlImageRequest implements Runnable {
 	}
 
 	private Bitmap mBitmap;
+	private Bitmap mVariant;
 	private String mUrlString;
 	private URL mUrl;
+	private int mWidth;
+	private int mHeight;
+	private Bitmap.Config mConfig = Bitmap.Config.ARGB_8888;
+	private Bitmap.Config mOpaqueConfig = Bitmap.Config.ARGB_8888;
 	private UrlImageRequestDelegate mDelegate;
+	private volatile boolean mCancelled;
+	private volatile boolean mTimedOut;
+	private boolean mRetryable;
+	private int mResponseCode;
+	private long mRetryAfter;
+	private int mConnectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private int mReadTimeout = DEFAULT_READ_TIMEOUT;
+	private int mTimeout = DEFAULT_TIMEOUT;
+	private volatile URLConnection mConnection;
+	private volatile InputStream mStream;
+	private byte[] mData;
+	private boolean mDataOnDisk;
+	private long mExpires = Long.MAX_VALUE;
+	private boolean mRevalidated;
+	private boolean mFetchOnly;
+	private boolean mStoredOnDisk;
+	private boolean mNoStore;
 
 	/**
-	 * Creates a new request that will load an image from a URL.
+	 * Creates a new request that will load an image from a URL and downsample
+	 * it to a target size.
 	 * 
 	 * @param url
 	 *            the URL to load the image from. May not be null.
+	 * @param width
+	 *            the width the image will be shown at, or 0 if the width
+	 *            doesn't matter.
+	 * @param height
+	 *            the height the image will be shown at, or 0 if the height
+	 *            doesn't matter.
 	 * @param delegate
 	 *            the delegate to be notified when the request has completed.
 	 *            May be null.
 	 * @throws MalformedURLException
 	 *             thrown when the URL provided is invalid.
 	 */
-	public UrlImageRequest(String url, UrlImageRequestDelegate delegate) {
+	public UrlImageRequest(String url, int width, int height, UrlImageRequestDelegate delegate) {
 
 		if (url == null)
 			throw new RuntimeException("You must provide a URL when creating a UrlImageRequest.");
@@ -79,7 +216,24 @@ public class UrlImageRequest implements Runnable {
 			Log.e(DEBUG_TAG, "Invalid URL for UrlImageRequest: " + url);
 			e.printStackTrace();
 		}
-		setDelegate(mDelegate);
+		mWidth = getBucketSize(width);
+		mHeight = getBucketSize(height);
+		setDelegate(delegate);
+	}
+
+	/**
+	 * Creates a new request that will load an image from a URL.
+	 * 
+	 * @param url
+	 *            the URL to load the image from. May not be null.
+	 * @param delegate
+	 *            the delegate to be notified when the request has completed.
+	 *            May be null.
+	 * @throws MalformedURLException
+	 *             thrown when the URL provided is invalid.
+	 */
+	public UrlImageRequest(String url, UrlImageRequestDelegate delegate) {
+		this(url, 0, 0, delegate);
 	}
 
 	/**
@@ -95,105 +249,964 @@ public class UrlImageRequest implements Runnable {
 	}
 
 	/**
-	 * Decodes a bitmap stream into a bitmap.
+	 * Reads all the bytes of an encoded image into memory, so they can be
+	 * decoded more than once.
 	 * 
-	 * @param bitmapStream
-	 *            the stream that holds bitmap data.
-	 * @return the decoded stream.
+	 * @param stream
+	 *            the stream that holds bitmap data. This won't be closed.
+	 * @return the bytes of the stream.
 	 */
-	private static synchronized Bitmap decodeStream(InputStream bitmapStream)
-			throws OutOfMemoryError {
+	private static byte[] readBytes(InputStream stream) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int count;
+		while ((count = stream.read(buffer)) != -1)
+			output.write(buffer, 0, count);
+		return output.toByteArray();
+	}
+
+	/**
+	 * Decodes bitmap data into a bitmap. Any number of threads can decode at
+	 * the same time, as long as the total size of the bitmaps being decoded
+	 * fits in the decode budget. Otherwise, this waits until other decodes
+	 * have finished.
+	 * 
+	 * @param data
+	 *            the encoded bitmap data.
+	 * @param width
+	 *            the target width, or 0 if the width doesn't matter.
+	 * @param height
+	 *            the target height, or 0 if the height doesn't matter.
+	 * @param config
+	 *            the config to decode the image with.
+	 * @param opaqueConfig
+	 *            the config to decode the image with if it can't be
+	 *            transparent.
+	 * @return the decoded bitmap. Null if the data couldn't be decoded.
+	 */
+	private static Bitmap decodeBytes(byte[] data, int width, int height, Bitmap.Config config,
+			Bitmap.Config opaqueConfig) throws OutOfMemoryError {
+
+		// Find out how big the bitmap is without allocating it.
+		BitmapFactory.Options bounds = new BitmapFactory.Options();
+		bounds.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(data, 0, data.length, bounds);
+		if (bounds.outWidth <= 0 || bounds.outHeight <= 0)
+			return null;
+
+		// Skip as many pixels as we can while decoding, then scale down the
+		// rest of the way so the image just covers the target size.
 		BitmapFactory.Options opts = new BitmapFactory.Options();
-		opts.inPurgeable = true;
-		opts.inInputShareable = true;
+		opts.inPreferredConfig = isOpaque(bounds.outMimeType) ? opaqueConfig : config;
+		opts.inSampleSize = getSampleSize(bounds.outWidth, bounds.outHeight, width, height);
+
+		int sampledWidth = bounds.outWidth / opts.inSampleSize;
+		int sampledHeight = bounds.outHeight / opts.inSampleSize;
+		float widthScale = width > 0 ? (float) width / sampledWidth : 0;
+		float heightScale = height > 0 ? (float) height / sampledHeight : 0;
+		float scale = Math.max(widthScale, heightScale);
+		if (scale > 0 && scale < 1) {
+			opts.inScaled = true;
+			if (widthScale >= heightScale) {
+				opts.inDensity = sampledWidth;
+				opts.inTargetDensity = width;
+			} else {
+				opts.inDensity = sampledHeight;
+				opts.inTargetDensity = height;
+			}
+		} else {
+
+			// Options scale by default, which makes a bitmap unusable for
+			// decoding into before KitKat.
+			opts.inScaled = false;
+			scale = 1;
+		}
+
+		int decodedWidth = (int) (sampledWidth * scale + 0.5f);
+		int decodedHeight = (int) (sampledHeight * scale + 0.5f);
+
+		// Decode into a bitmap that is no longer used, if there is one. Before
+		// KitKat, this only works if the image isn't downsampled or scaled.
+		UrlImageBitmapPool pool = UrlImageBitmapPool.getInstance();
+		if (UrlImageBitmapPool.isSupported()) {
+			opts.inMutable = true;
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+					|| (opts.inSampleSize == 1 && !opts.inScaled))
+				opts.inBitmap = pool.get(decodedWidth, decodedHeight, opts.inPreferredConfig);
+		} else {
+			opts.inPurgeable = true;
+			opts.inInputShareable = true;
+		}
 
-		// IF we get an out of memory error in decoding the stream, try again
-		// after clearing some memory.
-		Bitmap bitmap = BitmapFactory.decodeStream(bitmapStream, null, opts);
-		if (bitmap != null)
+		// A bitmap larger than the whole budget still gets decoded, but only
+		// once nothing else is being decoded.
+		long size = (long) decodedWidth * decodedHeight
+				* UrlImageBitmapPool.getBytesPerPixel(opts.inPreferredConfig);
+		int permits = (int) Math.min(DECODE_BUDGET_KB, size / 1024 + 1);
+		sDecodePermits.acquireUninterruptibly(permits);
+		try {
+			Bitmap bitmap;
+			try {
+				bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+			} catch (IllegalArgumentException e) {
+
+				// The pooled bitmap couldn't be decoded into after all.
+				if (opts.inBitmap == null)
+					throw e;
+				opts.inBitmap = null;
+				bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+			}
+
+			if (bitmap == null)
+				return null;
+
+			// Scaling sets the density of the bitmap to the target size, which
+			// would make drawables scale the image again. Its size in pixels is
+			// the size it should be shown at.
+			if (opts.inScaled)
+				bitmap.setDensity(Bitmap.DENSITY_NONE);
 			bitmap.prepareToDraw();
-		return bitmap;
+			return bitmap;
+		} finally {
+			sDecodePermits.release(permits);
+		}
+	}
+
+	/**
+	 * @param mimeType
+	 *            the MIME type of an encoded image. May be null.
+	 * @return true if images of the type can't be transparent.
+	 */
+	private static boolean isOpaque(String mimeType) {
+		return "image/jpeg".equals(mimeType);
+	}
+
+	/**
+	 * Finds the largest power of two by which an image can be downsampled
+	 * while still covering a target size.
+	 * 
+	 * @param width
+	 *            the width of the original image.
+	 * @param height
+	 *            the height of the original image.
+	 * @param targetWidth
+	 *            the target width, or 0 if the width doesn't matter.
+	 * @param targetHeight
+	 *            the target height, or 0 if the height doesn't matter.
+	 * @return the sample size to decode the image with.
+	 */
+	private static int getSampleSize(int width, int height, int targetWidth, int targetHeight) {
+		if (targetWidth <= 0 && targetHeight <= 0)
+			return 1;
+
+		int sampleSize = 1;
+		while ((targetWidth <= 0 || width / (sampleSize * 2) >= targetWidth)
+				&& (targetHeight <= 0 || height / (sampleSize * 2) >= targetHeight))
+			sampleSize *= 2;
+		return sampleSize;
+	}
+
+	/**
+	 * Rounds a target size up to a multiple of {@link #SIZE_BUCKET}.
+	 * 
+	 * @param size
+	 *            the target width or height, or 0 if it doesn't matter.
+	 * @return the rounded size, or 0 if the size doesn't matter.
+	 */
+	static int getBucketSize(int size) {
+		if (size <= 0)
+			return 0;
+
+		return (size + SIZE_BUCKET - 1) / SIZE_BUCKET * SIZE_BUCKET;
+	}
+
+	/**
+	 * Creates the key under which an image of a given target size is stored in
+	 * the {@link UrlImageCache}. Target sizes in the same bucket share a key.
+	 * 
+	 * @param url
+	 *            the URL of the image.
+	 * @param width
+	 *            the target width, or 0 if the width doesn't matter.
+	 * @param height
+	 *            the target height, or 0 if the height doesn't matter.
+	 * @return the cache key for the image, or null if the URL is null.
+	 */
+	public static UrlImageCacheKey getCacheKey(String url, int width, int height) {
+		return url == null ? null : new UrlImageCacheKey(url, width, height);
+	}
+
+	/**
+	 * Creates the key under which an image of a given target size, decoded
+	 * with the given configs, is stored in the {@link UrlImageCache}.
+	 * 
+	 * @param url
+	 *            the URL of the image.
+	 * @param width
+	 *            the target width, or 0 if the width doesn't matter.
+	 * @param height
+	 *            the target height, or 0 if the height doesn't matter.
+	 * @param config
+	 *            the config the image is decoded with.
+	 * @param opaqueConfig
+	 *            the config the image is decoded with if it can't be
+	 *            transparent.
+	 * @return the cache key for the image, or null if the URL is null.
+	 */
+	public static UrlImageCacheKey getCacheKey(String url, int width, int height,
+			Bitmap.Config config, Bitmap.Config opaqueConfig) {
+		return url == null ? null : new UrlImageCacheKey(url, width, height, config, opaqueConfig,
+				null);
 	}
 
 	@Override
 	public void run() {
-		if (mUrl == null || mUrl.equals(""))
-			return;
+		if (fetch())
+			decode();
+		deliver();
+	}
+
+	/**
+	 * The first stage of the request. Looks for the image in the memory cache
+	 * and otherwise reads its bytes from the disk cache or the network. This
+	 * mostly waits for I/O.
+	 * 
+	 * @return true if {@link #decode()} should be called next, false if the
+	 *         request can go straight to {@link #deliver()}.
+	 */
+	boolean fetch() {
+		if (mUrl == null || mUrl.equals("") || mCancelled)
+			return false;
 
 		// Check the cache for this bitmap.
-		// If there is nothing, then check the network.
-		mBitmap = UrlImageCache.getInstance().getImage(mUrlString);
+		// If there is nothing, then check the disk and the network.
+		// Until the delegate has been notified, make sure the bitmap isn't
+		// decoded into if the cache removes it. It is retained as it is
+		// looked up, so it can't be pooled in between.
+		UrlImageCache cache = UrlImageCache.getInstance();
+		if (mFetchOnly && cache.getDiskCache() != null) {
+			fetchData();
+			return true;
+		}
+
+		mBitmap = cache.retainImage(getCacheKey());
 
 		if (mBitmap == null) {
-			mBitmap = requestImageWithRetries(mUrl);
 
-			if (mBitmap != null)
-				UrlImageCache.getInstance().addImage(mBitmap, mUrlString);
+			// Scaling down a larger copy of the image is cheaper than reading
+			// and decoding it again.
+			UrlImageCacheKey variantKey = cache.findVariant(getCacheKey());
+			mVariant = cache.retainImage(variantKey);
+			if (mVariant != null) {
+				mExpires = cache.getExpiration(variantKey);
+			} else {
+				mData = fetchData();
+			}
+		} else if (cache.isExpired(getCacheKey())) {
+
+			// The image in memory has to be checked with the server. If it
+			// changed, decode the new image instead.
+			mData = fetchData();
+			if (mData != null) {
+				UrlImageBitmapPool.getInstance().release(mBitmap);
+				mBitmap = null;
+			} else if (mRevalidated) {
+				cache.addImage(mBitmap, getCacheKey(), mExpires);
+			}
 		}
 
-		if (mDelegate != null) {
-			
-			// Notify the delegate on the main thread.
-			Handler mainHandler = new Handler(Looper.getMainLooper());
-			mainHandler.post(new Runnable() {
-				@Override
-				public void run() {
-					mDelegate.onLoadImage(UrlImageRequest.this);
-				}
-			});
+		return true;
+	}
+
+	/**
+	 * The second stage of the request. Decodes the bytes read by
+	 * {@link #fetch()} and caches the image. This mostly uses the CPU.
+	 */
+	void decode() {
+		if (mBitmap == null && mVariant != null && !mCancelled) {
+			mBitmap = scaleVariant(mVariant);
+		} else if (mBitmap == null && mData != null && !mCancelled) {
+			mBitmap = decodeWithRetries(mData);
+
+			// If the bytes on disk can't be decoded, don't keep them around.
+			UrlImageDiskCache diskCache = UrlImageCache.getInstance().getDiskCache();
+			if (mBitmap == null && mDataOnDisk && diskCache != null && !mCancelled && !mRetryable)
+				diskCache.remove(mUrlString);
+		}
+
+		if (mBitmap != null && (mVariant != null || mData != null)) {
+			UrlImageBitmapPool.getInstance().retain(mBitmap);
+			UrlImageCache.getInstance().addImage(mBitmap, getCacheKey(), mExpires);
 		}
+
+		UrlImageBitmapPool.getInstance().release(mVariant);
+		mVariant = null;
+		mData = null;
 	}
 
 	/**
-	 * Requests an image and retries once if we run out of memory.
+	 * Scales a larger copy of the image down so that it just covers the
+	 * target size.
 	 * 
-	 * @param url
-	 *            the URL to request the image from.
-	 * @return the image that was downloaded
+	 * @param variant
+	 *            the cached image to scale down.
+	 * @return the scaled image. Null if we ran out of memory.
+	 */
+	private Bitmap scaleVariant(Bitmap variant) {
+		float scale = 0;
+		if (mWidth > 0)
+			scale = (float) mWidth / variant.getWidth();
+		if (mHeight > 0)
+			scale = Math.max(scale, (float) mHeight / variant.getHeight());
+
+		int width = Math.max((int) Math.ceil(variant.getWidth() * scale), 1);
+		int height = Math.max((int) Math.ceil(variant.getHeight() * scale), 1);
+		try {
+
+			// Scaling to the same size returns the same bitmap, which can't be
+			// cached under two keys.
+			if (width == variant.getWidth() && height == variant.getHeight())
+				return variant.copy(variant.getConfig(), true);
+
+			return Bitmap.createScaledBitmap(variant, width, height, true);
+		} catch (OutOfMemoryError e) {
+			Log.e(DEBUG_TAG, "Out of memory when scaling down the image at " + mUrlString);
+			mRetryable = true;
+			return null;
+		}
+	}
+
+	/**
+	 * Ends the request as a failure after one of its stages threw an
+	 * exception, so that it can still be delivered. Any image it holds is
+	 * released.
+	 * 
+	 * @param e
+	 *            the exception that was thrown.
+	 */
+	void fail(RuntimeException e) {
+		Log.e(DEBUG_TAG, "Could not load the image at " + mUrlString, e);
+		UrlImageBitmapPool pool = UrlImageBitmapPool.getInstance();
+		pool.release(mBitmap);
+		pool.release(mVariant);
+		mBitmap = null;
+		mVariant = null;
+		mData = null;
+		mStoredOnDisk = false;
+		mRetryable = false;
+	}
+
+	/**
+	 * The last stage of the request. Notifies the delegate on the main thread.
+	 */
+	void deliver() {
+		if (mCancelled || mDelegate == null) {
+			notifyDelegate();
+			return;
+		}
+
+		// Notify the delegate on the main thread.
+		getMainHandler().post(new Runnable() {
+			@Override
+			public void run() {
+				notifyDelegate();
+			}
+		});
+	}
+
+	/**
+	 * @return the handler that all requests use to notify their delegates.
+	 */
+	private static synchronized Handler getMainHandler() {
+		if (sMainHandler == null)
+			sMainHandler = new Handler(Looper.getMainLooper());
+
+		return sMainHandler;
+	}
+
+	/**
+	 * Notifies the delegate that the request has completed, unless the request
+	 * was cancelled. This must be called on the thread the delegate expects,
+	 * which is usually the main thread.
+	 * <p>
+	 * Unless the delegate is a {@link UrlImageLoader}, which decides for each
+	 * of its own delegates, we can't know how long the image will be used, so
+	 * it is never decoded into.
+	 */
+	void notifyDelegate() {
+		UrlImageBitmapPool pool = UrlImageBitmapPool.getInstance();
+		if (!(mDelegate instanceof UrlImageLoader))
+			pool.share(mBitmap);
+		if (mDelegate != null && !mCancelled)
+			mDelegate.onLoadImage(this);
+		pool.release(mBitmap);
+	}
+
+	/**
+	 * Decodes the image and retries once if we run out of memory.
+	 * 
+	 * @param data
+	 *            the encoded bytes of the image.
+	 * @return the image that was decoded
 	 */
-	private static Bitmap requestImageWithRetries(URL url) {
+	private Bitmap decodeWithRetries(byte[] data) {
 
 		// This is a little tricky due to some memory problems on Android.
 		// If we get an OutOfMemoryError, free up some space and try again.
 		try {
-			return requestImage(url);
+			return decodeBytes(data, mWidth, mHeight, mConfig, mOpaqueConfig);
 		} catch (OutOfMemoryError e) {
 
-			Log.w(DEBUG_TAG, "Out of memory when downloading image. Freeing space");
+			if (mCancelled)
+				return null;
+
+			Log.w(DEBUG_TAG, "Out of memory when decoding image. Freeing space");
 			UrlImageCache.getInstance().freeSomeSpace();
 
 			try {
-				return requestImage(url);
+				return decodeBytes(data, mWidth, mHeight, mConfig, mOpaqueConfig);
 			} catch (OutOfMemoryError e2) {
-				Log.e(DEBUG_TAG,
-						"Out of memory after retrying. Did not load image at " + url.toString());
+				Log.e(DEBUG_TAG, "Out of memory after retrying. Did not load image at " + mUrlString);
+				mRetryable = true;
 				return null;
 			}
 		}
 	}
 
 	/**
-	 * Requests an image from a URL.
+	 * Reads the encoded bytes of the image. If a fresh copy of the image is
+	 * stored in the disk cache, then it will be read from there without using
+	 * the network. If the copy has expired, then it is only downloaded again
+	 * if it changed on the server.
+	 * <p>
+	 * If the image is already in memory, then this is only called when it has
+	 * expired. In that case, null is returned if the image in memory is still
+	 * good or couldn't be checked.
 	 * 
-	 * @param url
-	 *            the URL to request the image from.
-	 * @return the image that was downloaded. Null if there was a problem.
-	 * @throws OutOfMemoryError
-	 *             This will be thrown if the bitmap decoder runs out of memory.
-	 *             Try to free up some space and try again.
+	 * @return the bytes of the image. Null if there was a problem.
 	 */
-	private static Bitmap requestImage(URL url) throws OutOfMemoryError {
+	private byte[] fetchData() {
+		mTimedOut = false;
+		mRetryable = false;
+		mResponseCode = 0;
+		mRetryAfter = 0;
+		mDataOnDisk = false;
+		mNoStore = false;
+
+		UrlImageDiskCache diskCache = UrlImageCache.getInstance().getDiskCache();
+		Validators validators = null;
+		if (diskCache != null) {
+			validators = diskCache.getValidators(mUrlString);
+
+			// Images stored without validators never expire.
+			boolean fresh = validators == null || validators.isFresh();
+			if (fresh && mFetchOnly && diskCache.contains(mUrlString)) {
+				mStoredOnDisk = true;
+				return null;
+			}
+			if (fresh && mBitmap != null && validators != null) {
+				mExpires = validators.getExpires();
+				mRevalidated = true;
+				return null;
+			}
+			if (fresh && mBitmap == null) {
+				byte[] data = readFromDisk(diskCache);
+				if (data != null) {
+					if (validators != null)
+						mExpires = validators.getExpires();
+					return data;
+				}
+			}
+			if (validators != null && !validators.canRevalidate())
+				validators = null;
+		}
+
+		// Keep the connection and stream around, so that cancelling can
+		// abort the download from another thread.
+		InputStream stream = null;
+		TimerTask watchdog = startWatchdog();
 		try {
-			URLConnection connection = url.openConnection();
+			URLConnection connection = mUrl.openConnection();
+			connection.setConnectTimeout(mConnectTimeout);
+			connection.setReadTimeout(mReadTimeout);
+			mConnection = connection;
+			if (mCancelled || mTimedOut)
+				return null;
+
+			// Ask the server to only send the image if it changed.
+			boolean conditional = validators != null && connection instanceof HttpURLConnection;
+			if (conditional) {
+				if (validators.getEtag() != null)
+					connection.setRequestProperty("If-None-Match", validators.getEtag());
+				if (validators.getLastModified() > 0)
+					connection.setIfModifiedSince(validators.getLastModified());
+			}
+
 			connection.connect();
-			Bitmap bitmap = decodeStream(connection.getInputStream());
-			return bitmap;
+			if (connection instanceof HttpURLConnection) {
+				mResponseCode = ((HttpURLConnection) connection).getResponseCode();
+				if (conditional && mResponseCode == HttpURLConnection.HTTP_NOT_MODIFIED)
+					return reuseNotModified(diskCache, readValidators(connection, validators));
+				if (mResponseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+					onHttpError(connection);
+					return null;
+				}
+			}
+
+			stream = connection.getInputStream();
+			mStream = stream;
+			if (mCancelled || mTimedOut)
+				return null;
+
+			// An image the server doesn't allow us to store is only kept in
+			// memory, and an older copy on disk must not be used anymore.
+			// Without a copy on disk, there is nothing to revalidate an image
+			// in memory with, so expiring it would only download it again.
+			validators = readValidators(connection, null);
+			mNoStore = isNoStore(connection);
+			if (diskCache != null && mNoStore)
+				diskCache.remove(mUrlString);
+			boolean store = diskCache != null && !mNoStore;
+			mExpires = store ? validators.getExpires() : Long.MAX_VALUE;
+			if (mNoStore && mFetchOnly)
+				return null;
+
+			// An image that is only stored on disk goes straight there without
+			// being read into memory.
+			if (store && mFetchOnly) {
+				if (!diskCache.put(mUrlString, stream, validators)) {
+					mRetryable = !mCancelled;
+					return null;
+				}
+				mStoredOnDisk = true;
+				return null;
+			}
+
+			// Otherwise decode the bytes we downloaded, even if they couldn't
+			// be stored on disk or were trimmed from it right away.
+			byte[] data = readBytes(stream);
+			if (store && !mCancelled && !mTimedOut) {
+				mDataOnDisk = diskCache.put(mUrlString, new ByteArrayInputStream(data), validators);
+				if (!mDataOnDisk)
+					Log.w(DEBUG_TAG, "Could not store the image at " + mUrlString + " on disk");
+			}
+			return data;
 		} catch (IOException e) {
-			e.printStackTrace();
+			if (mTimedOut || e instanceof SocketTimeoutException)
+				Log.w(DEBUG_TAG, "Timed out when downloading image at " + mUrlString);
+			else if (!mCancelled)
+				e.printStackTrace();
+			mRetryable = !mCancelled;
+			return null;
+		} catch (OutOfMemoryError e) {
+			Log.e(DEBUG_TAG, "Out of memory when downloading image at " + mUrlString);
+			mRetryable = true;
+			return null;
+		} finally {
+			if (watchdog != null)
+				stopWatchdog(watchdog);
+			mConnection = null;
+			mStream = null;
+			UrlImageDiskCache.closeQuietly(stream);
+		}
+	}
+
+	/**
+	 * Remembers whether an error response is worth retrying, and how long the
+	 * server asked us to wait before doing so.
+	 * 
+	 * @param connection
+	 *            the connection that received the error response.
+	 */
+	private void onHttpError(URLConnection connection) {
+		Log.w(DEBUG_TAG, "Got " + mResponseCode + " when downloading image at " + mUrlString);
+		mRetryable = mResponseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR
+				|| mResponseCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+				|| mResponseCode == HTTP_TOO_MANY_REQUESTS;
+		if (!mRetryable)
+			return;
+
+		// Retry-After is either a number of seconds or a date.
+		String retryAfter = connection.getHeaderField("Retry-After");
+		if (retryAfter == null)
+			return;
+
+		try {
+			mRetryAfter = Math.max(Long.parseLong(retryAfter.trim()) * 1000, 0);
+		} catch (NumberFormatException e) {
+			long date = connection.getHeaderFieldDate("Retry-After", 0);
+			if (date > 0)
+				mRetryAfter = Math.max(date - System.currentTimeMillis(), 0);
+		}
+	}
+
+	/**
+	 * Uses the cached copy of the image again after the server said it hasn't
+	 * changed.
+	 * 
+	 * @param diskCache
+	 *            the cache holding the image.
+	 * @param validators
+	 *            the validators from the response of the server.
+	 * @return the bytes of the image on disk, or null if the image is already
+	 *         in memory or only needs to be on disk.
+	 */
+	private byte[] reuseNotModified(UrlImageDiskCache diskCache, Validators validators) {
+		diskCache.setValidators(mUrlString, validators);
+		mExpires = validators.getExpires();
+		if (mFetchOnly) {
+			mStoredOnDisk = true;
+			return null;
+		}
+		if (mBitmap != null) {
+			mRevalidated = true;
+			return null;
+		}
+
+		// If the copy on disk went away in the meantime, downloading it again
+		// will work.
+		byte[] data = readFromDisk(diskCache);
+		mRetryable = data == null && !mCancelled;
+		return data;
+	}
+
+	/**
+	 * Reads the validators of an image from the headers of a response.
+	 * Cache-Control takes precedence over Expires. If the server sends
+	 * neither, then an image with a Last-Modified date stays fresh for a tenth
+	 * of its age, an image with only an ETag is always checked again, and an
+	 * image without any validators never expires.
+	 * 
+	 * @param connection
+	 *            the connection that received the response.
+	 * @param previous
+	 *            the validators the image was cached with, or null. A response
+	 *            saying the image hasn't changed may leave some of them out.
+	 * @return the validators of the image.
+	 */
+	private static Validators readValidators(URLConnection connection, Validators previous) {
+		long now = System.currentTimeMillis();
+		String etag = connection.getHeaderField("ETag");
+		long lastModified = connection.getLastModified();
+		if (previous != null) {
+			if (etag == null)
+				etag = previous.getEtag();
+			if (lastModified <= 0)
+				lastModified = previous.getLastModified();
+		}
+
+		long expires = Long.MAX_VALUE;
+		boolean explicit = false;
+		String cacheControl = connection.getHeaderField("Cache-Control");
+		if (cacheControl != null) {
+			for (String directive : cacheControl.toLowerCase(Locale.US).split(",")) {
+				directive = directive.trim();
+				if (directive.equals("no-cache") || directive.equals("no-store")) {
+					expires = now;
+					explicit = true;
+					break;
+				} else if (directive.startsWith("max-age=")) {
+					try {
+						expires = now + Long.parseLong(directive.substring(8).trim()) * 1000;
+						explicit = true;
+					} catch (NumberFormatException e) {
+						Log.w(DEBUG_TAG, "Invalid Cache-Control for " + connection.getURL());
+					}
+				}
+			}
+		}
+
+		// Expires is in the server's time, so measure it from the server's
+		// Date header.
+		if (!explicit && connection.getHeaderField("Expires") != null) {
+			long date = connection.getDate();
+			long expiration = connection.getExpiration();
+			expires = date > 0 ? now + expiration - date : expiration;
+			explicit = true;
+		}
+
+		if (!explicit) {
+			if (lastModified > 0)
+				expires = now + Math.max(now - lastModified, 0) / 10;
+			else if (etag != null)
+				expires = now;
+		}
+
+		return new Validators(etag, lastModified, expires);
+	}
+
+	/**
+	 * @param connection
+	 *            the connection that received the response.
+	 * @return true if the response has a Cache-Control header saying that the
+	 *         image may not be stored.
+	 */
+	private static boolean isNoStore(URLConnection connection) {
+		String cacheControl = connection.getHeaderField("Cache-Control");
+		if (cacheControl == null)
+			return false;
+
+		for (String directive : cacheControl.toLowerCase(Locale.US).split(",")) {
+			if (directive.trim().equals("no-store"))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the bytes of the image stored in the disk cache.
+	 * 
+	 * @param diskCache
+	 *            the cache to read the image from.
+	 * @return the bytes of the image. Null if the image isn't on disk or
+	 *         couldn't be read.
+	 */
+	private byte[] readFromDisk(UrlImageDiskCache diskCache) {
+		InputStream stream = diskCache.get(mUrlString);
+		if (stream == null)
+			return null;
+
+		try {
+			byte[] data = readBytes(stream);
+			mDataOnDisk = true;
+			return data;
+		} catch (IOException e) {
+			Log.w(DEBUG_TAG, "Could not read cached image for " + mUrlString, e);
+			return null;
+		} catch (OutOfMemoryError e) {
+			Log.e(DEBUG_TAG, "Out of memory when reading cached image for " + mUrlString);
 			return null;
+		} finally {
+			UrlImageDiskCache.closeQuietly(stream);
 		}
 	}
 
+	/**
+	 * Schedules the download to be aborted once it takes longer than the
+	 * timeout.
+	 * 
+	 * @return the task that aborts the download, or null if there is no
+	 *         timeout. It must be cancelled once the download is done.
+	 */
+	private TimerTask startWatchdog() {
+		if (mTimeout <= 0)
+			return null;
+
+		TimerTask task = new Watchdog(this);
+		getWatchdog().schedule(task, mTimeout);
+		return task;
+	}
+
+	/**
+	 * Cancels the task that aborts the download. A cancelled task stays in the
+	 * timer's queue until it would have run, so they are purged every so
+	 * often.
+	 * 
+	 * @param task
+	 *            the task returned by {@link #startWatchdog()}.
+	 */
+	private static void stopWatchdog(TimerTask task) {
+		if (task.cancel() && sCancelledWatchdogs.incrementAndGet() % WATCHDOG_PURGE_INTERVAL == 0)
+			getWatchdog().purge();
+	}
+
+	/**
+	 * @return the timer thread that watches all downloads.
+	 */
+	private static synchronized Timer getWatchdog() {
+		if (sWatchdog == null)
+			sWatchdog = new Timer("UrlImageRequest watchdog", true);
+
+		return sWatchdog;
+	}
+
+	/**
+	 * Cancels this request. If the image is being downloaded, then the
+	 * connection is closed. The delegate won't be notified.
+	 */
+	public void cancel() {
+		mCancelled = true;
+		abort();
+	}
+
+	/**
+	 * Closes the connection and the stream of the download, if there is one.
+	 * The thread reading from them will get an {@link IOException}.
+	 */
+	private void abort() {
+		URLConnection connection = mConnection;
+		if (connection instanceof HttpURLConnection)
+			((HttpURLConnection) connection).disconnect();
+		UrlImageDiskCache.closeQuietly(mStream);
+	}
+
+	/**
+	 * @return true if the download took longer than the timeout and was
+	 *         aborted.
+	 */
+	public boolean isTimedOut() {
+		return mTimedOut;
+	}
+
+	/**
+	 * Makes the request only store the image in the disk cache, without
+	 * reading it into memory or decoding it. If there is no disk cache, then
+	 * the image is decoded anyway. This must be called before the request
+	 * runs.
+	 * 
+	 * @param fetchOnly
+	 *            true to only store the image on disk.
+	 */
+	public void setFetchOnly(boolean fetchOnly) {
+		mFetchOnly = fetchOnly;
+	}
+
+	/**
+	 * @return true if the request only stores the image on disk.
+	 */
+	public boolean isFetchOnly() {
+		return mFetchOnly;
+	}
+
+	/**
+	 * @return true if the request finished without loading the image, and
+	 *         wasn't cancelled. Fetching an image that the server doesn't
+	 *         allow to be stored on disk doesn't count as failing.
+	 */
+	public boolean hasFailed() {
+		return mBitmap == null && !mStoredOnDisk && !(mFetchOnly && mNoStore) && !mCancelled;
+	}
+
+	/**
+	 * @return true if the last attempt to download the image failed in a way
+	 *         that may work if it is tried again.
+	 */
+	public boolean isRetryable() {
+		return mRetryable && !mCancelled && mBitmap == null;
+	}
+
+	/**
+	 * @return how long the server asked to wait before trying again in
+	 *         milliseconds, or 0 if it didn't say.
+	 */
+	public long getRetryAfter() {
+		return mRetryAfter;
+	}
+
+	/**
+	 * @return the HTTP status code of the last response, or 0 if there was
+	 *         none.
+	 */
+	public int getResponseCode() {
+		return mResponseCode;
+	}
+
+	/**
+	 * Sets how long connecting to the server may take. This must be called
+	 * before the request runs.
+	 * 
+	 * @param millis
+	 *            the connect timeout in milliseconds, or 0 for no timeout. The
+	 *            default is 10 seconds.
+	 */
+	public void setConnectTimeout(int millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("The connect timeout can't be negative.");
+
+		mConnectTimeout = millis;
+	}
+
+	/**
+	 * Sets how long a single read from the connection may wait for data. This
+	 * must be called before the request runs.
+	 * 
+	 * @param millis
+	 *            the read timeout in milliseconds, or 0 for no timeout. The
+	 *            default is 10 seconds.
+	 */
+	public void setReadTimeout(int millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("The read timeout can't be negative.");
+
+		mReadTimeout = millis;
+	}
+
+	/**
+	 * Sets how long the whole download may take, from connecting to reading
+	 * the last byte. This catches servers that send data too slowly for the
+	 * read timeout to notice. This must be called before the request runs.
+	 * 
+	 * @param millis
+	 *            the timeout in milliseconds, or 0 for no timeout. The default
+	 *            is 30 seconds.
+	 */
+	public void setTimeout(int millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("The timeout can't be negative.");
+
+		mTimeout = millis;
+	}
+
+	/**
+	 * @return how long the whole download may take in milliseconds, or 0 if
+	 *         there is no timeout.
+	 */
+	public int getTimeout() {
+		return mTimeout;
+	}
+
+	/**
+	 * Sets the config images are decoded with. This must be called before the
+	 * request runs.
+	 * 
+	 * @param config
+	 *            the config to decode images with. The default is
+	 *            {@link Bitmap.Config#ARGB_8888}.
+	 */
+	public void setConfig(Bitmap.Config config) {
+		if (config == null)
+			throw new IllegalArgumentException("The config of a UrlImageRequest can't be null.");
+
+		mConfig = config;
+	}
+
+	/**
+	 * Sets the config images that can't be transparent, such as JPEGs, are
+	 * decoded with. Set this to {@link Bitmap.Config#RGB_565} to halve the
+	 * memory those images use. This must be called before the request runs.
+	 * 
+	 * @param config
+	 *            the config to decode opaque images with. The default is
+	 *            {@link Bitmap.Config#ARGB_8888}.
+	 */
+	public void setOpaqueConfig(Bitmap.Config config) {
+		if (config == null)
+			throw new IllegalArgumentException("The opaque config of a UrlImageRequest can't be null.");
+
+		mOpaqueConfig = config;
+	}
+
+	/**
+	 * @return the config images are decoded with.
+	 */
+	public Bitmap.Config getConfig() {
+		return mConfig;
+	}
+
+	/**
+	 * @return the config images that can't be transparent are decoded with.
+	 */
+	public Bitmap.Config getOpaqueConfig() {
+		return mOpaqueConfig;
+	}
+
+	/**
+	 * @return true if this request has been cancelled.
+	 */
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
 	/**
 	 * @return the bitmap loaded by this request, null if nothing was received.
 	 */
@@ -205,6 +1218,40 @@ public class UrlImageRequest implements Runnable {
 		return mUrlString;
 	}
 
+	/**
+	 * @return the host of the URL, or an empty string if the URL is invalid.
+	 */
+	public String getHost() {
+		if (mUrl == null || mUrl.getHost() == null)
+			return "";
+
+		return mUrl.getHost();
+	}
+
+	/**
+	 * @return the width the image is downsampled to cover, or 0 if the width
+	 *         doesn't matter.
+	 */
+	public int getWidth() {
+		return mWidth;
+	}
+
+	/**
+	 * @return the height the image is downsampled to cover, or 0 if the height
+	 *         doesn't matter.
+	 */
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * @return the key under which the image of this request is stored in the
+	 *         {@link UrlImageCache}.
+	 */
+	public UrlImageCacheKey getCacheKey() {
+		return getCacheKey(mUrlString, mWidth, mHeight, mConfig, mOpaqueConfig);
+	}
+
 	/**
 	 * Sets the delegate to be notified when this request is complete.
 	 * 
@@ -11,6 +11,7 @@ import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.util.AttributeSet;
+import android.view.ViewGroup.LayoutParams;
 import android.widget.ImageView;
 
 import com.timahoney.urlimage.UrlImageLoader.UrlImageLoaderDelegate;
@@ -22,6 +23,15 @@ import com.timahoney.urlimage.UrlImageLoader.UrlImageLoaderDelegate;
  * placeholder image by calling {@link #setPlaceholder}. You can be notified
  * when the image has been loaded by using
  * {@link #setListener(UrlImageViewListener)}.
+ * <p>
+ * The image is downsampled to the size of the view. If the view hasn't been
+ * laid out yet, then the image will start loading once it has been. A
+ * dimension that wraps its content doesn't limit the size of the image.
+ * <p>
+ * When the view is detached from its window, it stops loading its image and
+ * lets go of it, so a screen that is no longer shown doesn't keep its images
+ * in use. Once the view is attached again, the image is shown again from the
+ * cache, or loaded again if it was removed from the cache in the meantime.
  */
 public class UrlImageView extends ImageView implements UrlImageLoaderDelegate {
 	private Drawable mPlaceholder;
@@ -30,6 +40,14 @@ public class UrlImageView extends ImageView implements UrlImageLoaderDelegate {
 	private ScaleType mUrlImageScale;
 	private ScaleType mPlaceholderScale;
 	private UrlImageViewListener mListener;
+	private boolean mHasLayout;
+	private boolean mWaitingForLayout;
+	private boolean mLoading;
+	private boolean mDetached;
+	private int mLoadingWidth;
+	private int mLoadingHeight;
+	private Bitmap.Config mConfig;
+	private Bitmap.Config mOpaqueConfig;
 
 	/**
 	 * An interface for being notified when a {@link UrlImageView} has loaded
@@ -80,19 +98,159 @@ public class UrlImageView extends ImageView implements UrlImageLoaderDelegate {
 		if (url != null && url.equals(mUrl))
 			return;
 
+		// We don't need the previous image anymore.
+		cancelLoading();
+
 		mUrl = url;
+		if (mDetached) {
+
+			// Nobody can see us. Load the image once we're attached again.
+			mWaitingForLayout = false;
+			showUrlImage(null);
+		} else if (mHasLayout || mUrl == null) {
+			mWaitingForLayout = false;
+			loadUrlImage();
+		} else {
+
+			// We don't know how big the image should be yet. Show the
+			// placeholder until we're laid out.
+			mWaitingForLayout = true;
+			showUrlImage(null);
+		}
+	}
+
+	/**
+	 * Shows the image for the current URL at the current size of the view,
+	 * either from the cache or by starting to load it.
+	 */
+	private void loadUrlImage() {
+		int width = getTargetWidth();
+		int height = getTargetHeight();
 		UrlImageCache cache = UrlImageCache.getInstance();
-		mImage = cache.getImage(mUrl);
+		UrlImageLoader loader = UrlImageLoader.getInstance();
+		UrlImageCacheKey key = loader.getCacheKey(mUrl, width, height, mConfig, mOpaqueConfig);
+		Bitmap image = cache.retainImage(key);
+		showUrlImage(image);
+		UrlImageBitmapPool.getInstance().release(image);
+
+		// An expired image is shown while we check whether it changed.
+		if (mUrl != null && (mImage == null || cache.isExpired(key))) {
+			mLoading = true;
+			mLoadingWidth = width;
+			mLoadingHeight = height;
+			loader.loadImage(mUrl, width, height, mConfig, mOpaqueConfig, this, null,
+					loader.getTimeout());
+		}
+		if (mImage != null && mListener != null)
+			mListener.onLoadImage(this, true);
+	}
+
+	/**
+	 * Cancels the request for the current URL if it is still loading.
+	 */
+	private void cancelLoading() {
+		if (!mLoading)
+			return;
+
+		mLoading = false;
+		UrlImageLoader.getInstance().cancel(mUrl, mLoadingWidth, mLoadingHeight, mConfig,
+				mOpaqueConfig, this);
+	}
+
+	/**
+	 * Shows the image loaded for the current URL, or the placeholder if there
+	 * is none. The image is retained in the {@link UrlImageBitmapPool} while
+	 * we show it, so nothing else is decoded into it. The previous image is
+	 * only released once it's no longer shown.
+	 * 
+	 * @param image
+	 *            the image for the current URL. May be null.
+	 */
+	private void showUrlImage(Bitmap image) {
+		UrlImageBitmapPool pool = UrlImageBitmapPool.getInstance();
+		Bitmap previous = mImage;
+		pool.retain(image);
+		mImage = image;
+
 		if (mImage == null) {
 			setImageDrawable(mPlaceholder);
 			setScaleType(mPlaceholderScale);
-			UrlImageLoader.getInstance().loadImage(url, this);
 		} else {
 			setScaleType(mUrlImageScale);
 			setImageBitmap(mImage);
+		}
 
-			if (mListener != null)
-				mListener.onLoadImage(this, true);
+		pool.release(previous);
+	}
+
+	/**
+	 * @return the width to load the image at, or 0 if the width of the view
+	 *         depends on the image.
+	 */
+	private int getTargetWidth() {
+		LayoutParams params = getLayoutParams();
+		if (params != null && params.width == LayoutParams.WRAP_CONTENT)
+			return 0;
+
+		return Math.max(getWidth() - getPaddingLeft() - getPaddingRight(), 0);
+	}
+
+	/**
+	 * @return the height to load the image at, or 0 if the height of the view
+	 *         depends on the image.
+	 */
+	private int getTargetHeight() {
+		LayoutParams params = getLayoutParams();
+		if (params != null && params.height == LayoutParams.WRAP_CONTENT)
+			return 0;
+
+		return Math.max(getHeight() - getPaddingTop() - getPaddingBottom(), 0);
+	}
+
+	@Override
+	protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
+		super.onLayout(changed, left, top, right, bottom);
+
+		// Now that we know our size, start loading the image.
+		synchronized (this) {
+			mHasLayout = true;
+			if (mWaitingForLayout) {
+				mWaitingForLayout = false;
+				loadUrlImage();
+			}
+		}
+	}
+
+	@Override
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+
+		// Show the image we let go of when we were detached.
+		synchronized (this) {
+			if (!mDetached)
+				return;
+
+			mDetached = false;
+			if (mUrl == null || mImage != null)
+				return;
+
+			if (mHasLayout)
+				loadUrlImage();
+			else
+				mWaitingForLayout = true;
+		}
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+
+		// Stop loading and let go of the image until we're attached again.
+		synchronized (this) {
+			mDetached = true;
+			mWaitingForLayout = false;
+			cancelLoading();
+			showUrlImage(null);
 		}
 	}
 
@@ -118,6 +276,35 @@ public class UrlImageView extends ImageView implements UrlImageLoaderDelegate {
 			setScaleType(mPlaceholderScale);
 	}
 
+	/**
+	 * Sets the configs the image is decoded with, for example
+	 * {@link Bitmap.Config#RGB_565} for opaque thumbnails. If an image is
+	 * already showing or loading, then it is loaded again with the new
+	 * configs.
+	 * 
+	 * @param config
+	 *            the config to decode the image with, or null for the one of
+	 *            the {@link UrlImageLoader}.
+	 * @param opaqueConfig
+	 *            the config to decode the image with if it can't be
+	 *            transparent, or null for the one of the
+	 *            {@link UrlImageLoader}.
+	 */
+	public synchronized void setConfig(Bitmap.Config config, Bitmap.Config opaqueConfig) {
+		if (config == mConfig && opaqueConfig == mOpaqueConfig)
+			return;
+
+		// The request was made with the old configs, so cancel it with them.
+		cancelLoading();
+		mConfig = config;
+		mOpaqueConfig = opaqueConfig;
+
+		// Otherwise the image is loaded with the new configs once we're laid
+		// out or attached again.
+		if (mUrl != null && !mDetached && mHasLayout)
+			loadUrlImage();
+	}
+
 	/**
 	 * @param listener
 	 *            the object to be notified when the image view finishes
@@ -145,15 +332,19 @@ public class UrlImageView extends ImageView implements UrlImageLoaderDelegate {
 	@Override
 	public void onLoadImage(UrlImageLoader loader, String url, Bitmap image) {
 
+		if (url.equals(mUrl))
+			mLoading = false;
+
 		// If we loaded the image, it's the correct URL, then show the new
 		// image.
 		if (image != null && url.equals(mUrl) && mImage != image) {
-			mImage = image;
-			setScaleType(mUrlImageScale);
-			setImageBitmap(mImage);
+			showUrlImage(image);
 
 			if (mListener != null)
 				mListener.onLoadImage(this, true);
+		} else if (image == null && url.equals(mUrl) && mImage == null) {
+			if (mListener != null)
+				mListener.onLoadImage(this, false);
 		}
 	}
 
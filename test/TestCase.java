@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2013, Tim Mahoney (tim.ivan.mahoney@gmail.com)
+ * 
+ * LICENSE: Do what you want with it.
+ */
+
+package com.timahoney.urlimage;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * A minimal test runner, so the tests can run on a plain JVM without any
+ * libraries. Every public static method of a test class whose name starts with
+ * "test" is run, and a failure makes the process exit with an error.
+ */
+abstract class TestCase {
+
+	/**
+	 * Runs the tests of a class and exits with an error if any failed.
+	 * 
+	 * @param testClass
+	 *            the class holding the tests.
+	 */
+	static void run(Class<?> testClass) {
+		int failures = 0;
+		for (Method method : testClass.getDeclaredMethods()) {
+			if (!method.getName().startsWith("test") || !Modifier.isStatic(method.getModifiers())
+					|| !Modifier.isPublic(method.getModifiers()))
+				continue;
+
+			String name = testClass.getSimpleName() + "." + method.getName();
+			try {
+				method.invoke(null);
+				System.out.println("PASS " + name);
+			} catch (InvocationTargetException e) {
+				failures++;
+				System.out.println("FAIL " + name);
+				e.getCause().printStackTrace(System.out);
+			} catch (IllegalAccessException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		if (failures > 0)
+			System.exit(1);
+	}
+
+	static void assertTrue(String message, boolean condition) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+
+	static void assertEquals(String message, long expected, long actual) {
+		if (expected != actual)
+			throw new AssertionError(message + ": expected " + expected + " but was " + actual);
+	}
+
+	static void assertEquals(String message, Object expected, Object actual) {
+		if (expected == null ? actual != null : !expected.equals(actual))
+			throw new AssertionError(message + ": expected " + expected + " but was " + actual);
+	}
+}
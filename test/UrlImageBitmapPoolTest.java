@@ -0,0 +1,193 @@
+/**
+ * Copyright (c) 2013, Tim Mahoney (tim.ivan.mahoney@gmail.com)
+ * 
+ * LICENSE: Do what you want with it.
+ */
+
+package com.timahoney.urlimage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.graphics.Bitmap;
+
+/**
+ * Tests for {@link UrlImageBitmapPool} and how {@link UrlImageCache} fills it.
+ */
+public class UrlImageBitmapPoolTest extends TestCase {
+	private static final int SIZE = 10 * 10 * 4;
+
+	public static void main(String[] args) {
+		run(UrlImageBitmapPoolTest.class);
+	}
+
+	private static UrlImageCache reset(int maxSize) {
+		UrlImageBitmapPool.getInstance().clear();
+		UrlImageCache cache = UrlImageCache.getInstance();
+		cache.clearLocalCache();
+		cache.setMaxSize(maxSize);
+		return cache;
+	}
+
+	private static Bitmap newBitmap() {
+		return Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+	}
+
+	public static void testEvictedImagesArePooled() {
+		UrlImageCache cache = reset(SIZE);
+		Bitmap a = newBitmap();
+		cache.addImage(a, "a");
+		cache.addImage(newBitmap(), "b");
+
+		Bitmap reused = UrlImageBitmapPool.getInstance().get(10, 10, Bitmap.Config.ARGB_8888);
+		assertTrue("The evicted image wasn't pooled", reused == a);
+	}
+
+	public static void testImagesHandedOutAreNeverPooled() {
+		UrlImageCache cache = reset(SIZE);
+		Bitmap a = newBitmap();
+		cache.addImage(a, "a");
+		assertTrue("Not cached", cache.getImage("a") == a);
+		cache.addImage(newBitmap(), "b");
+
+		UrlImageBitmapPool pool = UrlImageBitmapPool.getInstance();
+		assertTrue("A handed out image was pooled", pool.get(10, 10, Bitmap.Config.ARGB_8888) == null);
+
+		pool.share(newBitmap());
+		Bitmap shared = newBitmap();
+		pool.share(shared);
+		pool.put(shared);
+		assertTrue("A shared image was pooled", pool.get(10, 10, Bitmap.Config.ARGB_8888) == null);
+	}
+
+	public static void testRetainedImagesArePooledOnceReleased() {
+		UrlImageCache cache = reset(SIZE);
+		UrlImageBitmapPool pool = UrlImageBitmapPool.getInstance();
+		Bitmap a = newBitmap();
+		cache.addImage(a, "a");
+		assertTrue("Not cached", cache.retainImage(new UrlImageCacheKey("a")) == a);
+		cache.addImage(newBitmap(), "b");
+
+		assertTrue("A retained image was pooled", pool.get(10, 10, Bitmap.Config.ARGB_8888) == null);
+		pool.release(a);
+		assertTrue("The released image wasn't pooled", pool.get(10, 10, Bitmap.Config.ARGB_8888) == a);
+	}
+
+	public static void testTrimmedBitmapsAreNotRecycled() {
+		UrlImageCache cache = reset(SIZE);
+		Bitmap a = newBitmap();
+		cache.addImage(a, "a");
+		cache.addImage(newBitmap(), "b");
+		UrlImageBitmapPool.getInstance().clear();
+		assertTrue("A pooled bitmap was recycled", !a.isRecycled());
+	}
+
+	/**
+	 * Showing a cached image must not wait for the pool, which is locked
+	 * while images are evicted and decoded into.
+	 */
+	public static void testRetainingDoesntWaitForThePool() throws InterruptedException {
+		final UrlImageCache cache = reset(8 * SIZE);
+		final UrlImageBitmapPool pool = UrlImageBitmapPool.getInstance();
+		final Bitmap image = newBitmap();
+		cache.addImage(image, "a");
+
+		final CountDownLatch done = new CountDownLatch(1);
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i < 10000; i++) {
+					pool.release(cache.retainImage(new UrlImageCacheKey("a")));
+					cache.getImage("a");
+				}
+				done.countDown();
+			}
+		};
+
+		synchronized (pool) {
+			reader.start();
+			assertTrue("Retaining waited for the pool", done.await(5, TimeUnit.SECONDS));
+		}
+	}
+
+	/**
+	 * Images are read, retained, evicted and decoded into at the same time.
+	 * An image that was handed out must never be taken from the pool
+	 * afterwards, and a retained image not until it is released.
+	 */
+	public static void testHandedOutImagesAreNeverReusedConcurrently() throws InterruptedException {
+		final UrlImageCache cache = reset(8 * SIZE);
+		final UrlImageBitmapPool pool = UrlImageBitmapPool.getInstance();
+		final Map<Bitmap, Boolean> handedOut = Collections
+				.synchronizedMap(new IdentityHashMap<Bitmap, Boolean>());
+		final Map<Bitmap, Integer> retained = new IdentityHashMap<Bitmap, Integer>();
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+
+		for (int t = 0; t < 6; t++) {
+			final int role = t % 3;
+			final Random random = new Random(t);
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						while (System.nanoTime() < deadline) {
+							String url = "http://example.com/" + random.nextInt(32) + ".png";
+							if (role == 0) {
+								Bitmap image = cache.getImage(url);
+								if (image != null)
+									handedOut.put(image, Boolean.TRUE);
+							} else if (role == 1) {
+								Bitmap image = cache.retainImage(new UrlImageCacheKey(url));
+								if (image == null)
+									continue;
+
+								synchronized (retained) {
+									Integer count = retained.get(image);
+									retained.put(image, count == null ? 1 : count + 1);
+								}
+								Thread.yield();
+								synchronized (retained) {
+									Integer count = retained.remove(image);
+									if (count > 1)
+										retained.put(image, count - 1);
+								}
+								pool.release(image);
+							} else {
+
+								// Decode into a pooled bitmap if there is one.
+								Bitmap image = pool.get(10, 10, Bitmap.Config.ARGB_8888);
+								if (image != null && handedOut.containsKey(image))
+									throw new AssertionError("A handed out image was decoded into");
+								synchronized (retained) {
+									if (image != null && retained.containsKey(image))
+										throw new AssertionError("A retained image was decoded into");
+								}
+								cache.addImage(image == null ? newBitmap() : image, url);
+							}
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+		}
+
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads)
+			thread.join();
+
+		if (failure.get() != null)
+			throw new AssertionError(failure.get());
+		assertTrue("The pool was never used", pool.getHitCount() > 0);
+	}
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright (c) 2013, Tim Mahoney (tim.ivan.mahoney@gmail.com)
+ * 
+ * LICENSE: Do what you want with it.
+ */
+
+package com.timahoney.urlimage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.graphics.Bitmap;
+
+/**
+ * Tests for {@link UrlImageCache}.
+ */
+public class UrlImageCacheTest extends TestCase {
+
+	public static void main(String[] args) {
+		run(UrlImageCacheTest.class);
+	}
+
+	private static UrlImageCache newCache(int maxSize) {
+		UrlImageCache cache = UrlImageCache.getInstance();
+		cache.clearLocalCache();
+		cache.setMaxSize(maxSize);
+		return cache;
+	}
+
+	/**
+	 * Reads must finish while another thread holds the lock of the cache, as
+	 * a writer evicting images would.
+	 */
+	public static void testReadsDontWaitForTheLock() throws InterruptedException {
+		final UrlImageCache cache = newCache(1024 * 1024);
+		final Bitmap image = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+		cache.addImage(image, "http://example.com/a.png");
+
+		final CountDownLatch done = new CountDownLatch(1);
+		final AtomicReference<Bitmap> read = new AtomicReference<Bitmap>();
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i < 10000; i++) {
+					read.set(cache.getImage("http://example.com/a.png"));
+					cache.getImage("http://example.com/missing.png");
+				}
+				done.countDown();
+			}
+		};
+
+		synchronized (cache) {
+			reader.start();
+			assertTrue("Reads waited for the lock", done.await(5, TimeUnit.SECONDS));
+		}
+		assertTrue("The cached image wasn't read", read.get() == image);
+	}
+
+	/**
+	 * Many threads reading while others add and evict images must only ever
+	 * see the image stored under a key, and the cache must stay within its
+	 * budget.
+	 */
+	public static void testConcurrentReadsAndWrites() throws InterruptedException {
+		final int maxSize = 64 * 1024;
+		final UrlImageCache cache = newCache(maxSize);
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+
+		for (int t = 0; t < 8; t++) {
+			final boolean writer = t % 4 == 0;
+			final Random random = new Random(t);
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						while (System.nanoTime() < deadline) {
+
+							// The width of an image tells which key it belongs to.
+							int id = 1 + random.nextInt(200);
+							String url = "http://example.com/" + id + ".png";
+							if (writer) {
+								int height = 1 + random.nextInt(32);
+								cache.addImage(Bitmap.createBitmap(id, height, Bitmap.Config.ARGB_8888), url);
+							} else {
+								Bitmap image = cache.getImage(url);
+								if (image != null && image.getWidth() != id)
+									throw new AssertionError("Read the wrong image for " + url);
+							}
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+		}
+
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads)
+			thread.join();
+
+		if (failure.get() != null)
+			throw new AssertionError(failure.get());
+		assertTrue("The cache is over its budget: " + cache.getSize(), cache.getSize() <= maxSize);
+		assertTrue("The cache size is negative: " + cache.getSize(), cache.getSize() >= 0);
+	}
+
+	public static void testLeastRecentlyUsedIsEvictedFirst() {
+		UrlImageCache cache = newCache(3 * 400);
+		Bitmap a = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+		Bitmap b = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+		Bitmap c = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+		cache.addImage(a, "a");
+		cache.addImage(b, "b");
+		cache.addImage(c, "c");
+
+		// Reading a makes b the least recently used one.
+		cache.getImage("a");
+		cache.addImage(Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888), "d");
+
+		assertTrue("a was evicted", cache.getImage("a") == a);
+		assertTrue("b wasn't evicted", cache.getImage("b") == null);
+		assertTrue("c was evicted", cache.getImage("c") == c);
+		assertEquals("size", 3 * 400, cache.getSize());
+	}
+
+	/**
+	 * Images decoded with other configs must be cached under their own keys,
+	 * and only be scaled down for requests with the same configs.
+	 */
+	public static void testConfigsAreCachedSeparately() {
+		UrlImageCache cache = newCache(1024 * 1024);
+		String url = "http://example.com/photo.jpg";
+		UrlImageCacheKey key = UrlImageRequest.getCacheKey(url, 0, 0, Bitmap.Config.ARGB_8888,
+				Bitmap.Config.RGB_565);
+		assertTrue("The configs aren't part of the key", !key.equals(new UrlImageCacheKey(url)));
+		assertEquals("The default configs changed the key", new UrlImageCacheKey(url),
+				UrlImageRequest.getCacheKey(url, 0, 0, Bitmap.Config.ARGB_8888,
+						Bitmap.Config.ARGB_8888));
+
+		cache.addImage(Bitmap.createBitmap(200, 200, Bitmap.Config.RGB_565), key, Long.MAX_VALUE);
+		assertEquals("The variant wasn't found", key, cache.findVariant(new UrlImageCacheKey(url,
+				64, 64, Bitmap.Config.ARGB_8888, Bitmap.Config.RGB_565, null)));
+		assertEquals("A variant with other configs was found", null, cache.findVariant(url, 64,
+				64));
+	}
+
+	/**
+	 * URLs may contain spaces, so the key of one URL must never be mistaken for
+	 * a size of another URL that it starts with.
+	 */
+	public static void testUrlsWithSpacesDontCollide() {
+		UrlImageCache cache = newCache(1024 * 1024);
+		cache.addImage(Bitmap.createBitmap(200, 200, Bitmap.Config.ARGB_8888), "http://h/a b.png");
+
+		assertEquals("Another URL was found as a variant", null, cache.findVariant("http://h/a",
+				64, 64));
+		assertEquals("Another URL was read", null, cache.getImage("http://h/a"));
+		assertTrue("The URL with a space wasn't found", cache.findVariant("http://h/a b.png", 64,
+				64) != null);
+		assertTrue("The keys of different URLs are equal", !new UrlImageCacheKey("http://h/a b.png",
+				0, 0).equals(new UrlImageCacheKey("http://h/a", 0, 0)));
+	}
+
+	/**
+	 * Plays the trace of a gallery: a grid of thumbnails is scrolled through
+	 * twice, and some of the images are opened fullscreen in between. Photos
+	 * that were opened fullscreen before their thumbnail was shown must be
+	 * scaled down from the fullscreen image instead of being decoded again.
+	 */
+	public static void testThumbnailAndFullscreenTrace() {
+		UrlImageCache cache = newCache(16 * 1024 * 1024);
+		int hits = 0;
+		int reused = 0;
+		int decoded = 0;
+
+		int[] trace = new int[] {
+				// Scroll through the grid, open a few photos, and scroll back.
+				0, 1, 2, 3, 4, 5, 6, 7, 8, 9, -2, -5, -7, 0, 1, 2, 3, 4, 5, 6, 7, 8, 9,
+				// Open photos that were shared by a link, then show the grid.
+				-10, -11, -12, 10, 11, 12, 13 };
+		for (int access : trace) {
+			boolean fullscreen = access < 0;
+			String url = "http://example.com/" + Math.abs(access) + ".jpg";
+			UrlImageCacheKey key = fullscreen ? new UrlImageCacheKey(url)
+					: new UrlImageCacheKey(url, 100, 100);
+			if (cache.getImage(key) != null) {
+				hits++;
+				continue;
+			}
+
+			UrlImageCacheKey variant = cache.findVariant(key);
+			Bitmap image;
+			if (variant != null) {
+				reused++;
+				image = Bitmap.createScaledBitmap(cache.getImage(variant), key.getWidth(),
+						key.getHeight(), true);
+			} else {
+				decoded++;
+				int size = fullscreen ? 800 : key.getWidth();
+				image = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+			}
+			cache.addImage(image, key, Long.MAX_VALUE);
+		}
+
+		assertEquals("The thumbnails weren't read from the cache", 10, hits);
+		assertEquals("The fullscreen images weren't scaled down", 3, reused);
+		assertEquals("Images were decoded again", 10 + 3 + 3 + 1, decoded);
+		assertTrue("The fullscreen images were evicted",
+				cache.getImage("http://example.com/5.jpg") != null);
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2013, Tim Mahoney (tim.ivan.mahoney@gmail.com)
+ * 
+ * LICENSE: Do what you want with it.
+ */
+
+package com.timahoney.urlimage;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Measures how long it takes to open a {@link UrlImageDiskCache} holding many
+ * images and read the first one from it, and how fast it stores and finds
+ * them. Run it with "test/run.sh bench".
+ */
+public class UrlImageDiskCacheBenchmark {
+	private static final int[] IMAGE_COUNTS = new int[] { 10000, 50000, 100000 };
+	private static final int LOOKUP_COUNT = 200000;
+
+	public static void main(String[] args) throws IOException {
+		for (int imageCount : IMAGE_COUNTS)
+			run(imageCount);
+	}
+
+	private static void run(int imageCount) throws IOException {
+		System.out.printf("%d images:%n", imageCount);
+		File directory = UrlImageDiskCacheTest.createDirectory();
+		try {
+			byte[] data = new byte[256];
+			UrlImageDiskCache cache = new UrlImageDiskCache(directory, Long.MAX_VALUE);
+			long start = System.nanoTime();
+			for (int i = 0; i < imageCount; i++)
+				cache.put(UrlImageDiskCacheTest.getUrl(i), UrlImageDiskCacheTest.stream(data));
+			report("put", imageCount, System.nanoTime() - start);
+
+			// A cold start: open the cache and read the first image from it.
+			start = System.nanoTime();
+			cache = new UrlImageDiskCache(directory, Long.MAX_VALUE);
+			long openNanos = System.nanoTime() - start;
+			UrlImageDiskCacheTest.read(cache.get(UrlImageDiskCacheTest.getUrl(imageCount / 2)));
+			long firstHitNanos = System.nanoTime() - start;
+			System.out.printf("  open: %.2f ms, open and first get: %.2f ms%n", openNanos / 1e6,
+					firstHitNanos / 1e6);
+			if (cache.size() != imageCount)
+				throw new AssertionError("Opened " + cache.size() + " images instead of " + imageCount);
+
+			start = System.nanoTime();
+			int found = 0;
+			for (int i = 0; i < LOOKUP_COUNT; i++) {
+				if (cache.contains(UrlImageDiskCacheTest.getUrl(i % (2 * imageCount))))
+					found++;
+			}
+			report("contains", LOOKUP_COUNT, System.nanoTime() - start);
+			int expected = countLookupHits(imageCount);
+			if (found != expected)
+				throw new AssertionError("Found " + found + " images instead of " + expected);
+
+			start = System.nanoTime();
+			for (int i = 0; i < imageCount; i++)
+				UrlImageDiskCacheTest.read(cache.get(UrlImageDiskCacheTest.getUrl(i)));
+			report("get", imageCount, System.nanoTime() - start);
+		} finally {
+			UrlImageDiskCacheTest.delete(directory);
+		}
+	}
+
+	/**
+	 * @return how many of the lookups are for stored images. Every other run
+	 *         of imageCount lookups is for images that were never stored.
+	 */
+	private static int countLookupHits(int imageCount) {
+		int found = 0;
+		for (int i = 0; i < LOOKUP_COUNT; i++) {
+			if (i % (2 * imageCount) < imageCount)
+				found++;
+		}
+		return found;
+	}
+
+	private static void report(String name, int count, long nanos) {
+		System.out.printf("  %s: %d in %.1f ms, %.2f us each%n", name, count, nanos / 1e6, nanos
+				/ 1e3 / count);
+	}
+}
@@ -0,0 +1,207 @@
+/**
+ * Copyright (c) 2013, Tim Mahoney (tim.ivan.mahoney@gmail.com)
+ * 
+ * LICENSE: Do what you want with it.
+ */
+
+package com.timahoney.urlimage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import com.timahoney.urlimage.UrlImageDiskCache.Validators;
+
+/**
+ * Tests for {@link UrlImageDiskCache}.
+ */
+public class UrlImageDiskCacheTest extends TestCase {
+
+	public static void main(String[] args) {
+		run(UrlImageDiskCacheTest.class);
+	}
+
+	/**
+	 * Every image must be readable right after it was stored, including the
+	 * ones whose commit grew the index.
+	 */
+	public static void testPutThenGetAcrossIndexRebuilds() throws IOException {
+		File directory = createDirectory();
+		try {
+			UrlImageDiskCache cache = new UrlImageDiskCache(directory, 1024 * 1024 * 1024);
+			for (int i = 0; i < 2000; i++) {
+				String url = getUrl(i);
+				assertTrue("Could not put " + url, cache.put(url, stream(getData(i))));
+				assertTrue("Lost " + url + " right after putting it",
+						Arrays.equals(getData(i), read(cache.get(url))));
+			}
+
+			assertEquals("size", 2000, cache.size());
+			for (int i = 0; i < 2000; i++)
+				assertTrue("Lost " + getUrl(i), Arrays.equals(getData(i), read(cache.get(getUrl(i)))));
+		} finally {
+			delete(directory);
+		}
+	}
+
+	public static void testReopeningKeepsImages() throws IOException {
+		File directory = createDirectory();
+		try {
+			UrlImageDiskCache cache = new UrlImageDiskCache(directory, 1024 * 1024);
+			for (int i = 0; i < 100; i++)
+				cache.put(getUrl(i), stream(getData(i)));
+
+			UrlImageDiskCache reopened = new UrlImageDiskCache(directory, 1024 * 1024);
+			assertEquals("size", 100, reopened.size());
+			assertEquals("bytes", cache.getSize(), reopened.getSize());
+			for (int i = 0; i < 100; i++)
+				assertTrue("Lost " + getUrl(i), Arrays.equals(getData(i), read(reopened.get(getUrl(i)))));
+		} finally {
+			delete(directory);
+		}
+	}
+
+	public static void testLeastRecentlyUsedImagesAreTrimmed() throws IOException, InterruptedException {
+		File directory = createDirectory();
+		try {
+			byte[] data = new byte[1000];
+			UrlImageDiskCache cache = new UrlImageDiskCache(directory, 10000);
+			for (int i = 0; i < 10; i++) {
+				cache.put(getUrl(i), stream(data));
+				Thread.sleep(2);
+			}
+
+			// Reading the first image makes the second one the oldest.
+			read(cache.get(getUrl(0)));
+			Thread.sleep(2);
+			cache.put(getUrl(10), stream(data));
+
+			assertTrue("Over budget: " + cache.getSize(), cache.getSize() <= 10000);
+			assertTrue("The recently read image was trimmed", cache.contains(getUrl(0)));
+			assertTrue("The oldest image wasn't trimmed", !cache.contains(getUrl(1)));
+			assertTrue("The new image was trimmed", cache.contains(getUrl(10)));
+		} finally {
+			delete(directory);
+		}
+	}
+
+	public static void testValidatorsAreStoredAndRemoved() throws IOException {
+		File directory = createDirectory();
+		try {
+			UrlImageDiskCache cache = new UrlImageDiskCache(directory, 1024 * 1024);
+			String url = getUrl(1);
+			cache.put(url, stream(getData(1)), new Validators("\"abc\"", 1000, 2000));
+
+			Validators validators = cache.getValidators(url);
+			assertEquals("etag", "\"abc\"", validators.getEtag());
+			assertEquals("last modified", 1000, validators.getLastModified());
+			assertEquals("expires", 2000, validators.getExpires());
+
+			cache.setValidators(url, new Validators(null, 0, 3000));
+			assertEquals("expires", 3000, cache.getValidators(url).getExpires());
+
+			cache.remove(url);
+			assertTrue("Validators outlived their image", cache.getValidators(url) == null);
+			assertEquals("Files left behind", 1, directory.list().length);
+		} finally {
+			delete(directory);
+		}
+	}
+
+	public static void testInvalidIndexStartsOver() throws IOException {
+		File directory = createDirectory();
+		try {
+			UrlImageDiskCache cache = new UrlImageDiskCache(directory, 1024 * 1024);
+			cache.put(getUrl(1), stream(getData(1)));
+
+			FileOutputStream index = new FileOutputStream(new File(directory, "index"));
+			index.write(new byte[] { 1, 2, 3 });
+			index.close();
+
+			UrlImageDiskCache reopened = new UrlImageDiskCache(directory, 1024 * 1024);
+			assertEquals("size", 0, reopened.size());
+			assertEquals("Files left behind", 1, directory.list().length);
+		} finally {
+			delete(directory);
+		}
+	}
+
+	/**
+	 * Reopening with a valid index must still delete what earlier sessions
+	 * left behind: unfinished temporary files and images without a record.
+	 */
+	public static void testReopeningDeletesLeftoverFiles() throws IOException {
+		File directory = createDirectory();
+		try {
+			UrlImageDiskCache cache = new UrlImageDiskCache(directory, 1024 * 1024);
+			cache.put(getUrl(1), stream(getData(1)));
+			int files = directory.list().length;
+
+			File temp = new File(directory, "0123456789abcdef0123456789abcdef.old-1.tmp");
+			File unrecorded = new File(directory, "fedcba9876543210fedcba9876543210");
+			new FileOutputStream(temp).close();
+			new FileOutputStream(unrecorded).close();
+
+			UrlImageDiskCache reopened = new UrlImageDiskCache(directory, 1024 * 1024);
+			assertEquals("size", 1, reopened.size());
+			assertTrue("The temporary file was kept", !temp.exists());
+			assertTrue("The unrecorded image was kept", !unrecorded.exists());
+			assertEquals("Files were deleted", files, directory.list().length);
+			assertTrue("Lost " + getUrl(1), Arrays.equals(getData(1), read(reopened.get(getUrl(1)))));
+		} finally {
+			delete(directory);
+		}
+	}
+
+	static String getUrl(int i) {
+		return "http://example.com/images/" + i + ".jpg";
+	}
+
+	static byte[] getData(int i) {
+		byte[] data = new byte[16 + i % 64];
+		for (int j = 0; j < data.length; j++)
+			data[j] = (byte) (i + j);
+		return data;
+	}
+
+	static InputStream stream(byte[] data) {
+		return new ByteArrayInputStream(data);
+	}
+
+	static byte[] read(InputStream stream) throws IOException {
+		if (stream == null)
+			return null;
+
+		try {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			int count;
+			while ((count = stream.read(buffer)) != -1)
+				output.write(buffer, 0, count);
+			return output.toByteArray();
+		} finally {
+			stream.close();
+		}
+	}
+
+	static File createDirectory() {
+		File directory = new File(System.getProperty("java.io.tmpdir"), "UrlImageDiskCacheTest-"
+				+ System.nanoTime());
+		if (!directory.mkdirs())
+			throw new RuntimeException("Could not create " + directory);
+		return directory;
+	}
+
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+}
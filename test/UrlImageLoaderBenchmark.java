@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) 2013, Tim Mahoney (tim.ivan.mahoney@gmail.com)
+ * 
+ * LICENSE: Do what you want with it.
+ */
+
+package com.timahoney.urlimage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.graphics.Bitmap;
+
+import com.timahoney.urlimage.UrlImageLoader.UrlImageLoaderDelegate;
+
+/**
+ * Measures how long it takes to queue many images with
+ * {@link UrlImageLoader#prefetch} compared to calling
+ * {@link UrlImageLoader#loadImage} for each of them. The loader is paused, so
+ * only queueing is measured. Run it with "test/run.sh bench".
+ */
+public class UrlImageLoaderBenchmark {
+	private static final int URL_COUNT = 1000;
+	private static final int WARMUP_ROUNDS = 5;
+	private static final int ROUNDS = 10;
+
+	private static int sRound;
+
+	public static void main(String[] args) {
+		UrlImageLoaderTest.installTestUrls();
+		UrlImageLoader loader = new UrlImageLoader.Builder().install();
+		loader.pause();
+
+		UrlImageLoaderDelegate delegate = new UrlImageLoaderDelegate() {
+			@Override
+			public void onLoadImage(UrlImageLoader loader, String url, Bitmap image) {
+			}
+		};
+
+		for (int i = 0; i < WARMUP_ROUNDS; i++) {
+			prefetch(loader);
+			loadImages(loader, delegate);
+		}
+
+		long prefetchNanos = Long.MAX_VALUE;
+		long loadImageNanos = Long.MAX_VALUE;
+		for (int i = 0; i < ROUNDS; i++) {
+			prefetchNanos = Math.min(prefetchNanos, prefetch(loader));
+			loadImageNanos = Math.min(loadImageNanos, loadImages(loader, delegate));
+		}
+		report("prefetch", prefetchNanos);
+		report("loadImage", loadImageNanos);
+	}
+
+	/**
+	 * @return how long it took to prefetch a batch of new URLs.
+	 */
+	private static long prefetch(UrlImageLoader loader) {
+		List<String> urls = newUrls("prefetch");
+		long start = System.nanoTime();
+		loader.prefetch(urls);
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * @return how long it took to load a batch of new URLs one at a time.
+	 */
+	private static long loadImages(UrlImageLoader loader, UrlImageLoaderDelegate delegate) {
+		List<String> urls = newUrls("load");
+		long start = System.nanoTime();
+		for (String url : urls)
+			loader.loadImage(url, delegate);
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * @return URLs that haven't been requested before, so none are skipped.
+	 */
+	private static List<String> newUrls(String host) {
+		List<String> urls = new ArrayList<String>(URL_COUNT);
+		int round = sRound++;
+		for (int i = 0; i < URL_COUNT; i++)
+			urls.add("test://" + host + "/" + round + "/" + i + ".png");
+		return urls;
+	}
+
+	private static void report(String name, long nanos) {
+		System.out.printf("%s: %d URLs in %.2f ms, %.2f us each%n", name, URL_COUNT, nanos / 1e6,
+				nanos / 1e3 / URL_COUNT);
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright (c) 2013, Tim Mahoney (tim.ivan.mahoney@gmail.com)
+ * 
+ * LICENSE: Do what you want with it.
+ */
+
+package com.timahoney.urlimage;
+
+import java.util.concurrent.CountDownLatch;
+
+import android.graphics.Bitmap;
+
+import com.timahoney.urlimage.UrlImageLoader.UrlImageLoaderDelegate;
+
+/**
+ * Tests for how {@link UrlImageLoader} shares its fetch threads between hosts.
+ * The loader has four fetch threads, and at most two requests per host. It
+ * uses the test: URLs of {@link UrlImageLoaderTest}.
+ */
+public class UrlImageLoaderHostTest extends TestCase {
+	private static final int MAX_REQUESTS_PER_HOST = 2;
+
+	public static void main(String[] args) {
+		UrlImageLoaderTest.installTestUrls();
+		new UrlImageLoader.Builder().setFetchThreadCount(4)
+				.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST).install();
+		run(UrlImageLoaderHostTest.class);
+	}
+
+	/**
+	 * A host that stalls may only hold its share of the fetch threads. The
+	 * images of another host must keep arriving in the meantime.
+	 */
+	public static void testSlowHostDoesntHoldUpOthers() throws InterruptedException {
+		UrlImageLoader loader = UrlImageLoader.getInstance();
+		loader.pause();
+
+		// Queue the slow host first, so it would take every thread if it could.
+		CountDownLatch slowDone = new CountDownLatch(4);
+		UrlImageLoaderDelegate slowDelegate = UrlImageLoaderTest.countDown(slowDone);
+		for (int i = 0; i < 4; i++)
+			loader.loadImage("test://stall/" + i + ".png", slowDelegate);
+
+		final CountDownLatch firstImage = new CountDownLatch(1);
+		CountDownLatch fastDone = new CountDownLatch(20);
+		final UrlImageLoaderDelegate fastDelegate = UrlImageLoaderTest.countDown(fastDone);
+		UrlImageLoaderDelegate delegate = new UrlImageLoaderDelegate() {
+			@Override
+			public void onLoadImage(UrlImageLoader loader, String url, Bitmap image) {
+				firstImage.countDown();
+				fastDelegate.onLoadImage(loader, url, image);
+			}
+		};
+		for (int i = 0; i < 20; i++)
+			loader.loadImage("test://fast/" + i + ".png", delegate);
+
+		long start = System.nanoTime();
+		loader.resume();
+		try {
+			assertTrue("No image of the fast host arrived", UrlImageLoaderTest.await(firstImage));
+			long firstImageMillis = (System.nanoTime() - start) / 1000000;
+			System.out.println("Time to the first image: " + firstImageMillis + " ms");
+
+			assertTrue("The fast host was held up", UrlImageLoaderTest.await(fastDone));
+			assertEquals("The slow host took more than its share of the threads",
+					MAX_REQUESTS_PER_HOST, UrlImageLoaderTest.getFetched("test://stall/").size());
+			assertEquals("The slow requests finished", 4, slowDone.getCount());
+		} finally {
+			for (int i = 0; i < 4; i++)
+				loader.cancel("test://stall/" + i + ".png", slowDelegate);
+		}
+	}
+}
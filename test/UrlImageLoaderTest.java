@@ -0,0 +1,461 @@
+/**
+ * Copyright (c) 2013, Tim Mahoney (tim.ivan.mahoney@gmail.com)
+ * 
+ * LICENSE: Do what you want with it.
+ */
+
+package com.timahoney.urlimage;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.net.URLStreamHandlerFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.view.View;
+
+import com.timahoney.urlimage.UrlImageFuture.UrlImageFutureListener;
+import com.timahoney.urlimage.UrlImageLoader.UrlImageLoaderDelegate;
+import com.timahoney.urlimage.UrlImageLoader.UrlImageLoaderPriority;
+
+/**
+ * Tests for {@link UrlImageLoader}. Images are loaded from test: URLs, which
+ * remember the order they were fetched in and never decode. The loader has a
+ * single fetch thread, so that order is the order requests were started in.
+ * Images from the host "stall" never arrive; reading them blocks until the
+ * stream is closed. Connecting to the host "throw" throws a runtime
+ * exception. Images from the host "http" do decode, and are answered with
+ * caching headers like a web server would.
+ */
+public class UrlImageLoaderTest extends TestCase {
+
+	private static final List<String> sFetched = new ArrayList<String>();
+	private static final List<String> sRevalidated = new ArrayList<String>();
+
+	public static void main(String[] args) {
+		installTestUrls();
+		new UrlImageLoader.Builder().setFetchThreadCount(1).install();
+		run(UrlImageLoaderTest.class);
+	}
+
+	/**
+	 * Lets test: URLs be opened in this process. Other tests of the loader
+	 * use this to install a loader with another configuration.
+	 */
+	static void installTestUrls() {
+		URL.setURLStreamHandlerFactory(new URLStreamHandlerFactory() {
+			@Override
+			public URLStreamHandler createURLStreamHandler(String protocol) {
+				if (!protocol.equals("test"))
+					return null;
+
+				return new URLStreamHandler() {
+					@Override
+					protected URLConnection openConnection(URL url) {
+						if (url.getHost().equals("http"))
+							return new HttpTestConnection(url);
+						return new TestConnection(url);
+					}
+				};
+			}
+		});
+	}
+
+	private static class TestConnection extends URLConnection {
+		TestConnection(URL url) {
+			super(url);
+		}
+
+		@Override
+		public void connect() {
+			synchronized (sFetched) {
+				sFetched.add(url.toString());
+			}
+			if (url.getHost().equals("throw"))
+				throw new IllegalStateException("Thrown on purpose");
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			if (url.getHost().equals("stall"))
+				return new StalledInputStream();
+
+			return new ByteArrayInputStream(new byte[] { 1, 2, 3 });
+		}
+	}
+
+	/**
+	 * Answers like a web server. Images whose path contains "no-store" may
+	 * not be stored. Other images have an ETag, must be checked with the
+	 * server every time, and stay fresh for a minute once they were.
+	 */
+	private static class HttpTestConnection extends HttpURLConnection {
+		private static final String ETAG = "\"v1\"";
+
+		private boolean mNotModified;
+
+		HttpTestConnection(URL url) {
+			super(url);
+		}
+
+		@Override
+		public void connect() {
+			if (connected)
+				return;
+
+			mNotModified = ETAG.equals(getRequestProperty("If-None-Match"));
+			connected = true;
+			synchronized (sFetched) {
+				sFetched.add(url.toString());
+				if (mNotModified)
+					sRevalidated.add(url.toString());
+			}
+		}
+
+		@Override
+		public int getResponseCode() {
+			connect();
+			return mNotModified ? HTTP_NOT_MODIFIED : HTTP_OK;
+		}
+
+		@Override
+		public String getHeaderField(String name) {
+			if (name.equalsIgnoreCase("Cache-Control")) {
+				if (url.getPath().contains("no-store"))
+					return "no-store";
+				return mNotModified ? "max-age=60" : "no-cache";
+			}
+			if (name.equalsIgnoreCase("ETag"))
+				return ETAG;
+			return null;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			connect();
+			return new ByteArrayInputStream(new byte[] { 'I', 'M', 'G', 10, 10 });
+		}
+
+		@Override
+		public void disconnect() {
+		}
+
+		@Override
+		public boolean usingProxy() {
+			return false;
+		}
+	}
+
+	private static class StalledInputStream extends InputStream {
+		private final CountDownLatch mClosed = new CountDownLatch(1);
+
+		@Override
+		public int read() throws IOException {
+			try {
+				mClosed.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			throw new IOException("The stream was closed.");
+		}
+
+		@Override
+		public void close() {
+			mClosed.countDown();
+		}
+	}
+
+	private static class DelegateView extends View implements UrlImageLoaderDelegate {
+		DelegateView() {
+			super(null);
+		}
+
+		@Override
+		public void onLoadImage(UrlImageLoader loader, String url, Bitmap image) {
+		}
+	}
+
+	static UrlImageLoaderDelegate countDown(final CountDownLatch latch) {
+		return new UrlImageLoaderDelegate() {
+			@Override
+			public void onLoadImage(UrlImageLoader loader, String url, Bitmap image) {
+				latch.countDown();
+			}
+		};
+	}
+
+	private static UrlImageLoaderDelegate collectImage(final AtomicReference<Bitmap> image,
+			final CountDownLatch latch) {
+		return new UrlImageLoaderDelegate() {
+			@Override
+			public void onLoadImage(UrlImageLoader loader, String url, Bitmap loaded) {
+				image.set(loaded);
+				latch.countDown();
+			}
+		};
+	}
+
+	/**
+	 * Runs the messages for the main thread until the latch is done.
+	 */
+	static boolean await(CountDownLatch latch) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (latch.getCount() > 0 && System.currentTimeMillis() < deadline) {
+			Handler.runPending();
+			Thread.sleep(5);
+		}
+		return latch.getCount() == 0;
+	}
+
+	private static boolean collect(Reference<?> reference) throws InterruptedException {
+		for (int i = 0; i < 50 && reference.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		return reference.get() == null;
+	}
+
+	private static boolean wasFetched(String url) {
+		synchronized (sFetched) {
+			return sFetched.contains(url);
+		}
+	}
+
+	static List<String> getFetched(String prefix) {
+		List<String> fetched = new ArrayList<String>();
+		synchronized (sFetched) {
+			for (String url : sFetched) {
+				if (url.startsWith(prefix))
+					fetched.add(url);
+			}
+		}
+		return fetched;
+	}
+
+	/**
+	 * A view waiting for an image must not be kept alive by the loader, and
+	 * its request is dropped once it is collected.
+	 */
+	public static void testViewDelegatesAreHeldWeakly() throws InterruptedException {
+		UrlImageLoader loader = UrlImageLoader.getInstance();
+		loader.pause();
+
+		DelegateView view = new DelegateView();
+		Reference<View> reference = new WeakReference<View>(view);
+		loader.loadImage("test://weak/view.png", view);
+		view = null;
+		assertTrue("The loader kept the view", collect(reference));
+
+		CountDownLatch done = new CountDownLatch(1);
+		loader.loadImage("test://weak/after.png", countDown(done));
+		loader.resume();
+		assertTrue("The image wasn't delivered", await(done));
+		assertTrue("The request of the collected view was fetched",
+				!wasFetched("test://weak/view.png"));
+	}
+
+	/**
+	 * Delegates that nothing else holds, like anonymous classes and futures,
+	 * must still be notified.
+	 */
+	public static void testOtherDelegatesAreHeldUntilDone() throws InterruptedException {
+		UrlImageLoader loader = UrlImageLoader.getInstance();
+		loader.pause();
+
+		final CountDownLatch done = new CountDownLatch(2);
+		UrlImageLoaderDelegate delegate = countDown(done);
+		Reference<UrlImageLoaderDelegate> reference = new WeakReference<UrlImageLoaderDelegate>(
+				delegate);
+		loader.loadImage("test://strong/delegate.png", delegate);
+		delegate = null;
+		loader.loadImageFuture("test://strong/future.png").addListener(
+				new UrlImageFutureListener() {
+					@Override
+					public void onDone(UrlImageFuture future) {
+						done.countDown();
+					}
+				});
+		assertTrue("The loader let go of the delegate", !collect(reference));
+
+		loader.resume();
+		assertTrue("The delegates weren't notified", await(done));
+	}
+
+	/**
+	 * A download that stalls must be aborted once the timeout given to
+	 * loadImage has passed, well before the default timeout.
+	 */
+	public static void testTimeoutOfARequest() throws InterruptedException {
+		UrlImageLoader loader = UrlImageLoader.getInstance();
+		CountDownLatch done = new CountDownLatch(1);
+		long start = System.currentTimeMillis();
+		loader.loadImage("test://stall/timeout.png", 0, 0, countDown(done), null, 200);
+		assertTrue("The download wasn't aborted", await(done));
+		assertTrue("The download took too long", System.currentTimeMillis() - start < 2000);
+	}
+
+	/**
+	 * A request whose fetch throws must still be delivered as a failure, and
+	 * must not keep the fetch thread from starting the next request.
+	 */
+	public static void testThrowingRequestIsDelivered() throws InterruptedException {
+		UrlImageLoader loader = UrlImageLoader.getInstance();
+		AtomicReference<Bitmap> image = new AtomicReference<Bitmap>();
+		CountDownLatch failed = new CountDownLatch(1);
+		loader.loadImage("test://throw/a.png", collectImage(image, failed));
+		assertTrue("The request that threw wasn't delivered", await(failed));
+		assertTrue("The request that threw got an image", image.get() == null);
+
+		CountDownLatch done = new CountDownLatch(1);
+		loader.loadImage("test://after-throw/a.png", countDown(done));
+		assertTrue("The next request wasn't delivered", await(done));
+	}
+
+	/**
+	 * A waiting request that is asked for again with a higher priority must
+	 * be started before everything else that was waiting.
+	 */
+	public static void testUpgradedRequestRunsNext() throws InterruptedException {
+		UrlImageLoader loader = UrlImageLoader.getInstance();
+		loader.pause();
+
+		CountDownLatch done = new CountDownLatch(100);
+		UrlImageLoaderDelegate delegate = countDown(done);
+		for (int i = 0; i < 100; i++)
+			loader.loadImage("test://order/" + i + ".png", delegate, UrlImageLoaderPriority.LOW);
+		loader.loadImage("test://order/57.png", delegate, UrlImageLoaderPriority.VERY_HIGH);
+		loader.resume();
+		assertTrue("The images weren't delivered", await(done));
+
+		List<String> fetched = getFetched("test://order/");
+		assertEquals("Not every image was fetched once", 100, fetched.size());
+		assertEquals("The upgraded request didn't run next", "test://order/57.png",
+				fetched.get(0));
+		assertEquals("The other requests weren't fetched in order", "test://order/0.png",
+				fetched.get(1));
+	}
+
+	/**
+	 * An expired image that the server says hasn't changed must be used
+	 * again instead of being downloaded, and stay fresh for as long as the
+	 * server now says.
+	 */
+	public static void testNotModifiedImageIsReused() throws InterruptedException {
+		UrlImageCache cache = UrlImageCache.getInstance();
+		File directory = UrlImageDiskCacheTest.createDirectory();
+		cache.setDiskCache(new UrlImageDiskCache(directory, 1024 * 1024));
+		try {
+			UrlImageLoader loader = UrlImageLoader.getInstance();
+			String url = "test://http/revalidated.png";
+			UrlImageCacheKey key = new UrlImageCacheKey(url);
+			AtomicReference<Bitmap> first = new AtomicReference<Bitmap>();
+			CountDownLatch done = new CountDownLatch(1);
+			loader.loadImage(url, collectImage(first, done));
+			assertTrue("The image wasn't delivered", await(done));
+			assertTrue("The image wasn't decoded", first.get() != null);
+			Thread.sleep(5);
+			assertTrue("The image didn't expire", cache.isExpired(key));
+
+			AtomicReference<Bitmap> second = new AtomicReference<Bitmap>();
+			done = new CountDownLatch(1);
+			loader.loadImage(url, collectImage(second, done));
+			assertTrue("The image wasn't delivered again", await(done));
+			synchronized (sFetched) {
+				assertEquals("The image wasn't checked with the server", 1, sRevalidated.size());
+			}
+			assertTrue("The cached image wasn't reused", second.get() == first.get());
+			assertTrue("The image in memory didn't get the new expiration",
+					cache.getExpiration(key) > System.currentTimeMillis() + 30000);
+			assertTrue("The image on disk didn't get the new expiration", cache.getDiskCache()
+					.getValidators(url).isFresh());
+		} finally {
+			cache.setDiskCache(null);
+			UrlImageDiskCacheTest.delete(directory);
+		}
+	}
+
+	/**
+	 * An image the server doesn't allow to be stored must only be kept in
+	 * memory.
+	 */
+	public static void testNoStoreImageIsOnlyKeptInMemory() throws InterruptedException {
+		UrlImageCache cache = UrlImageCache.getInstance();
+		File directory = UrlImageDiskCacheTest.createDirectory();
+		cache.setDiskCache(new UrlImageDiskCache(directory, 1024 * 1024));
+		try {
+			String url = "test://http/no-store.png";
+			AtomicReference<Bitmap> image = new AtomicReference<Bitmap>();
+			CountDownLatch done = new CountDownLatch(1);
+			UrlImageLoader.getInstance().loadImage(url, collectImage(image, done));
+			assertTrue("The image wasn't delivered", await(done));
+			assertTrue("The image wasn't decoded", image.get() != null);
+			assertTrue("The image was stored on disk", !cache.getDiskCache().contains(url));
+			assertTrue("The image isn't in memory", cache.getImage(url) == image.get());
+			assertTrue("The image in memory expired", !cache.isExpired(new UrlImageCacheKey(url)));
+		} finally {
+			cache.setDiskCache(null);
+			UrlImageDiskCacheTest.delete(directory);
+		}
+	}
+
+	/**
+	 * Replays a fling through a list with five recycled rows. While the list
+	 * moves, the loader is paused, and every row that is bound to a new
+	 * position cancels the image of its old one. Once the list settles, the
+	 * visible rows are bound again. Only the images of the visible rows may
+	 * be fetched, the last one bound first.
+	 */
+	public static void testFlingOnlyFetchesVisibleRows() throws InterruptedException {
+		UrlImageLoader loader = UrlImageLoader.getInstance();
+		loader.setLastInFirstOut(true);
+		loader.pause();
+		try {
+			int rowCount = 5;
+			int positionCount = 50;
+			CountDownLatch done = new CountDownLatch(rowCount);
+			UrlImageLoaderDelegate[] rows = new UrlImageLoaderDelegate[rowCount];
+			String[] bound = new String[rowCount];
+			for (int row = 0; row < rowCount; row++)
+				rows[row] = countDown(done);
+
+			for (int position = 0; position < positionCount; position++) {
+				int row = position % rowCount;
+				if (bound[row] != null)
+					loader.cancel(bound[row], rows[row]);
+				bound[row] = "test://fling/" + position + ".png";
+				loader.loadImage(bound[row], rows[row]);
+			}
+
+			// The list settled and binds its visible rows again.
+			for (int row = 0; row < rowCount; row++) {
+				loader.cancel(bound[row], rows[row]);
+				loader.loadImage(bound[row], rows[row]);
+			}
+			loader.resume();
+			assertTrue("The visible images weren't delivered", await(done));
+
+			List<String> fetched = getFetched("test://fling/");
+			assertEquals("Images of rows that scrolled off were fetched", rowCount,
+					fetched.size());
+			for (int i = 0; i < rowCount; i++) {
+				assertEquals("The visible images weren't fetched last bound first",
+						"test://fling/" + (positionCount - 1 - i) + ".png", fetched.get(i));
+			}
+		} finally {
+			loader.setLastInFirstOut(false);
+			loader.resume();
+		}
+	}
+}
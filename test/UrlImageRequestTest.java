@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2013, Tim Mahoney (tim.ivan.mahoney@gmail.com)
+ * 
+ * LICENSE: Do what you want with it.
+ */
+
+package com.timahoney.urlimage;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link UrlImageRequest}. The requests download from a local
+ * server that accepts connections but never answers, so they stall before
+ * the response headers arrive.
+ */
+public class UrlImageRequestTest extends TestCase {
+
+	public static void main(String[] args) {
+		run(UrlImageRequestTest.class);
+	}
+
+	/**
+	 * A server that accepts connections and never writes to them.
+	 */
+	private static class SilentServer extends Thread {
+		private final ServerSocket mServerSocket;
+		private final List<Socket> mSockets = new ArrayList<Socket>();
+
+		SilentServer() throws IOException {
+			mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+			setDaemon(true);
+			start();
+		}
+
+		String getUrl(String path) {
+			return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					Socket socket = mServerSocket.accept();
+					synchronized (mSockets) {
+						mSockets.add(socket);
+					}
+				}
+			} catch (IOException e) {
+				// The server was closed.
+			}
+		}
+
+		void close() throws IOException {
+			mServerSocket.close();
+			synchronized (mSockets) {
+				for (Socket socket : mSockets)
+					socket.close();
+			}
+		}
+	}
+
+	/**
+	 * Without a read timeout, only the watchdog can end a download that
+	 * stalls before the headers. It must disconnect the connection once the
+	 * timeout of the request has passed.
+	 */
+	public static void testWatchdogDisconnectsStalledHeaders() throws IOException {
+		SilentServer server = new SilentServer();
+		try {
+			UrlImageRequest request = new UrlImageRequest(server.getUrl("/watchdog.png"));
+			request.setConnectTimeout(1000);
+			request.setReadTimeout(0);
+			request.setTimeout(300);
+
+			long start = System.currentTimeMillis();
+			request.fetch();
+			long millis = System.currentTimeMillis() - start;
+			assertTrue("The download wasn't disconnected in time: " + millis + " ms",
+					millis < 2000);
+			assertTrue("The download didn't time out", request.isTimedOut());
+			assertTrue("The download can't be retried", request.isRetryable());
+		} finally {
+			server.close();
+		}
+	}
+
+	/**
+	 * A read timeout shorter than the timeout of the request must end a
+	 * download that stalls before the headers by itself.
+	 */
+	public static void testReadTimeoutEndsStalledHeaders() throws IOException {
+		SilentServer server = new SilentServer();
+		try {
+			UrlImageRequest request = new UrlImageRequest(server.getUrl("/read-timeout.png"));
+			request.setConnectTimeout(1000);
+			request.setReadTimeout(300);
+			request.setTimeout(10000);
+
+			long start = System.currentTimeMillis();
+			request.fetch();
+			long millis = System.currentTimeMillis() - start;
+			assertTrue("The read didn't time out in time: " + millis + " ms", millis < 2000);
+			assertTrue("The watchdog ended the download", !request.isTimedOut());
+			assertTrue("The download can't be retried", request.isRetryable());
+		} finally {
+			server.close();
+		}
+	}
+}
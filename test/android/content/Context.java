@@ -0,0 +1,12 @@
+package android.content;
+
+import android.content.res.Resources;
+
+/**
+ * A fake of the Android class for running tests on the JVM.
+ */
+public class Context {
+	public Resources getResources() {
+		return new Resources();
+	}
+}
@@ -0,0 +1,12 @@
+package android.content.res;
+
+import android.graphics.drawable.Drawable;
+
+/**
+ * A fake of the Android class for running tests on the JVM.
+ */
+public class Resources {
+	public Drawable getDrawable(int id) {
+		return null;
+	}
+}
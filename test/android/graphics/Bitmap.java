@@ -0,0 +1,110 @@
+package android.graphics;
+
+/**
+ * A fake of the Android class for running tests on the JVM. It keeps track of
+ * its size, but has no pixels.
+ */
+public final class Bitmap {
+	public static final int DENSITY_NONE = 0;
+
+	public enum Config {
+		ALPHA_8, RGB_565, ARGB_4444, ARGB_8888
+	}
+
+	private int mWidth;
+	private int mHeight;
+	private Config mConfig;
+	private final int mAllocationByteCount;
+	private final boolean mMutable;
+	private boolean mRecycled;
+	private int mDensity = DENSITY_NONE;
+
+	private Bitmap(int width, int height, Config config, boolean mutable) {
+		mWidth = width;
+		mHeight = height;
+		mConfig = config;
+		mAllocationByteCount = width * height * getBytesPerPixel(config);
+		mMutable = mutable;
+	}
+
+	private static int getBytesPerPixel(Config config) {
+		if (config == Config.ALPHA_8)
+			return 1;
+		if (config == Config.RGB_565 || config == Config.ARGB_4444)
+			return 2;
+		return 4;
+	}
+
+	public static Bitmap createBitmap(int width, int height, Config config) {
+		return new Bitmap(width, height, config, true);
+	}
+
+	public static Bitmap createScaledBitmap(Bitmap src, int width, int height, boolean filter) {
+		if (src.mWidth == width && src.mHeight == height)
+			return src;
+		return new Bitmap(width, height, src.mConfig, true);
+	}
+
+	public Bitmap copy(Config config, boolean isMutable) {
+		return new Bitmap(mWidth, mHeight, config, isMutable);
+	}
+
+	public void reconfigure(int width, int height, Config config) {
+		if (width * height * getBytesPerPixel(config) > mAllocationByteCount)
+			throw new IllegalArgumentException("Bitmap not large enough");
+		mWidth = width;
+		mHeight = height;
+		mConfig = config;
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	public Config getConfig() {
+		return mConfig;
+	}
+
+	public int getRowBytes() {
+		return mWidth * getBytesPerPixel(mConfig);
+	}
+
+	public int getByteCount() {
+		return getRowBytes() * mHeight;
+	}
+
+	public int getAllocationByteCount() {
+		return mAllocationByteCount;
+	}
+
+	public boolean isMutable() {
+		return mMutable;
+	}
+
+	public boolean hasAlpha() {
+		return mConfig != Config.RGB_565;
+	}
+
+	public int getDensity() {
+		return mDensity;
+	}
+
+	public void setDensity(int density) {
+		mDensity = density;
+	}
+
+	public void prepareToDraw() {
+	}
+
+	public void recycle() {
+		mRecycled = true;
+	}
+
+	public boolean isRecycled() {
+		return mRecycled;
+	}
+}
@@ -0,0 +1,50 @@
+package android.graphics;
+
+/**
+ * A fake of the Android class for running tests on the JVM. Only fake images
+ * can be decoded: the bytes "IMG", followed by the width and the height as
+ * one byte each. Anything else fails to decode.
+ */
+public class BitmapFactory {
+	public static class Options {
+		public boolean inJustDecodeBounds;
+		public int inSampleSize;
+		public boolean inScaled = true;
+		public int inDensity;
+		public int inTargetDensity;
+		public boolean inMutable;
+		public boolean inPurgeable;
+		public boolean inInputShareable;
+		public Bitmap inBitmap;
+		public Bitmap.Config inPreferredConfig = Bitmap.Config.ARGB_8888;
+		public int outWidth;
+		public int outHeight;
+		public String outMimeType;
+	}
+
+	public static Bitmap decodeByteArray(byte[] data, int offset, int length, Options opts) {
+		if (length != 5 || data[offset] != 'I' || data[offset + 1] != 'M'
+				|| data[offset + 2] != 'G')
+			return null;
+
+		int width = data[offset + 3] & 0xff;
+		int height = data[offset + 4] & 0xff;
+		if (opts != null && opts.inJustDecodeBounds) {
+			opts.outWidth = width;
+			opts.outHeight = height;
+			opts.outMimeType = "image/png";
+			return null;
+		}
+
+		Bitmap.Config config = opts != null ? opts.inPreferredConfig : Bitmap.Config.ARGB_8888;
+		if (opts != null && opts.inSampleSize > 1) {
+			width /= opts.inSampleSize;
+			height /= opts.inSampleSize;
+		}
+		if (opts != null && opts.inBitmap != null) {
+			opts.inBitmap.reconfigure(width, height, config);
+			return opts.inBitmap;
+		}
+		return Bitmap.createBitmap(width, height, config);
+	}
+}
@@ -0,0 +1,12 @@
+package android.graphics.drawable;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+
+/**
+ * A fake of the Android class for running tests on the JVM.
+ */
+public class BitmapDrawable extends Drawable {
+	public BitmapDrawable(Resources res, Bitmap bitmap) {
+	}
+}
@@ -0,0 +1,7 @@
+package android.graphics.drawable;
+
+/**
+ * A fake of the Android class for running tests on the JVM.
+ */
+public abstract class Drawable {
+}
@@ -0,0 +1,18 @@
+package android.os;
+
+/**
+ * A fake of the Android class for running tests on the JVM. Tests may change
+ * {@link VERSION#SDK_INT}.
+ */
+public final class Build {
+	public static class VERSION {
+		public static int SDK_INT = VERSION_CODES.KITKAT;
+	}
+
+	public static class VERSION_CODES {
+		public static final int GINGERBREAD = 9;
+		public static final int HONEYCOMB = 11;
+		public static final int JELLY_BEAN = 16;
+		public static final int KITKAT = 19;
+	}
+}
@@ -0,0 +1,48 @@
+package android.os;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A fake of the Android class for running tests on the JVM. Messages wait,
+ * ignoring their delay, until a test runs them with {@link #runPending()}.
+ */
+public class Handler {
+	private static final List<Runnable> sPending = new ArrayList<Runnable>();
+
+	public Handler(Looper looper) {
+	}
+
+	public boolean post(Runnable r) {
+		synchronized (sPending) {
+			sPending.add(r);
+		}
+		return true;
+	}
+
+	public boolean postDelayed(Runnable r, long delayMillis) {
+		return post(r);
+	}
+
+	public void removeCallbacks(Runnable r) {
+		synchronized (sPending) {
+			sPending.remove(r);
+		}
+	}
+
+	/**
+	 * Runs the messages that were posted so far, as the main thread would.
+	 * 
+	 * @return the amount of messages that ran.
+	 */
+	public static int runPending() {
+		List<Runnable> pending;
+		synchronized (sPending) {
+			pending = new ArrayList<Runnable>(sPending);
+			sPending.clear();
+		}
+		for (Runnable r : pending)
+			r.run();
+		return pending.size();
+	}
+}
@@ -0,0 +1,17 @@
+package android.os;
+
+/**
+ * A fake of the Android class for running tests on the JVM. No thread is the
+ * main thread.
+ */
+public final class Looper {
+	private static final Looper sMainLooper = new Looper();
+
+	public static Looper getMainLooper() {
+		return sMainLooper;
+	}
+
+	public static Looper myLooper() {
+		return null;
+	}
+}
@@ -0,0 +1,14 @@
+package android.os;
+
+/**
+ * A fake of the Android class for running tests on the JVM.
+ */
+public final class SystemClock {
+	public static long uptimeMillis() {
+		return System.nanoTime() / 1000000;
+	}
+
+	public static long elapsedRealtime() {
+		return System.nanoTime() / 1000000;
+	}
+}
@@ -0,0 +1,7 @@
+package android.util;
+
+/**
+ * A fake of the Android interface for running tests on the JVM.
+ */
+public interface AttributeSet {
+}
@@ -0,0 +1,27 @@
+package android.util;
+
+/**
+ * A fake of the Android class for running tests on the JVM. Messages are
+ * dropped.
+ */
+public final class Log {
+	public static int d(String tag, String msg) {
+		return 0;
+	}
+
+	public static int w(String tag, String msg) {
+		return 0;
+	}
+
+	public static int w(String tag, String msg, Throwable tr) {
+		return 0;
+	}
+
+	public static int e(String tag, String msg) {
+		return 0;
+	}
+
+	public static int e(String tag, String msg, Throwable tr) {
+		return 0;
+	}
+}
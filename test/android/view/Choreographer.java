@@ -0,0 +1,20 @@
+package android.view;
+
+/**
+ * A fake of the Android class for running tests on the JVM. Frame callbacks
+ * never run.
+ */
+public final class Choreographer {
+	public interface FrameCallback {
+		void doFrame(long frameTimeNanos);
+	}
+
+	private static final Choreographer sInstance = new Choreographer();
+
+	public static Choreographer getInstance() {
+		return sInstance;
+	}
+
+	public void postFrameCallback(FrameCallback callback) {
+	}
+}
@@ -0,0 +1,95 @@
+package android.view;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.util.AttributeSet;
+
+/**
+ * A fake of the Android class for running tests on the JVM.
+ */
+public class View {
+	private final Context mContext;
+	private ViewGroup.LayoutParams mLayoutParams;
+	private int mWidth;
+	private int mHeight;
+
+	public View(Context context) {
+		mContext = context;
+	}
+
+	public View(Context context, AttributeSet attrs) {
+		this(context);
+	}
+
+	public View(Context context, AttributeSet attrs, int defStyle) {
+		this(context);
+	}
+
+	public Context getContext() {
+		return mContext;
+	}
+
+	public Resources getResources() {
+		return mContext.getResources();
+	}
+
+	public ViewGroup.LayoutParams getLayoutParams() {
+		return mLayoutParams;
+	}
+
+	public void setLayoutParams(ViewGroup.LayoutParams params) {
+		mLayoutParams = params;
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	public int getPaddingLeft() {
+		return 0;
+	}
+
+	public int getPaddingTop() {
+		return 0;
+	}
+
+	public int getPaddingRight() {
+		return 0;
+	}
+
+	public int getPaddingBottom() {
+		return 0;
+	}
+
+	public boolean post(Runnable action) {
+		return true;
+	}
+
+	public void invalidate() {
+	}
+
+	public void requestLayout() {
+	}
+
+	/**
+	 * Lays the view out at a size, as its parent would.
+	 */
+	public void layout(int left, int top, int right, int bottom) {
+		mWidth = right - left;
+		mHeight = bottom - top;
+		onLayout(true, left, top, right, bottom);
+	}
+
+	protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
+	}
+
+	protected void onAttachedToWindow() {
+	}
+
+	protected void onDetachedFromWindow() {
+	}
+}
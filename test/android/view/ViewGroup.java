@@ -0,0 +1,23 @@
+package android.view;
+
+/**
+ * A fake of the Android class for running tests on the JVM.
+ */
+public class ViewGroup extends View {
+	public static class LayoutParams {
+		public static final int MATCH_PARENT = -1;
+		public static final int WRAP_CONTENT = -2;
+
+		public int width;
+		public int height;
+
+		public LayoutParams(int width, int height) {
+			this.width = width;
+			this.height = height;
+		}
+	}
+
+	public ViewGroup(android.content.Context context) {
+		super(context);
+	}
+}
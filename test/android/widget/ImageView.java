@@ -0,0 +1,44 @@
+package android.widget;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * A fake of the Android class for running tests on the JVM.
+ */
+public class ImageView extends View {
+	public enum ScaleType {
+		MATRIX, FIT_XY, FIT_START, FIT_CENTER, FIT_END, CENTER, CENTER_CROP, CENTER_INSIDE
+	}
+
+	private ScaleType mScaleType = ScaleType.FIT_CENTER;
+
+	public ImageView(Context context) {
+		super(context);
+	}
+
+	public ImageView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+	}
+
+	public ImageView(Context context, AttributeSet attrs, int defStyle) {
+		super(context, attrs, defStyle);
+	}
+
+	public ScaleType getScaleType() {
+		return mScaleType;
+	}
+
+	public void setScaleType(ScaleType scaleType) {
+		mScaleType = scaleType;
+	}
+
+	public void setImageBitmap(Bitmap bitmap) {
+	}
+
+	public void setImageDrawable(Drawable drawable) {
+	}
+}
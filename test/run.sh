@@ -0,0 +1,23 @@
+#!/bin/sh
+#
+# Compiles the library against fakes of the Android classes it uses and runs
+# the tests on a plain JVM. Run "test/run.sh bench" to run the benchmarks
+# instead.
+
+set -e
+cd "$(dirname "$0")"
+
+suffix=Test
+if [ "$1" = "bench" ]; then
+	suffix=Benchmark
+fi
+
+rm -rf build
+mkdir -p build
+javac -nowarn -encoding UTF-8 -d build $(find android -name '*.java') ../*.java *.java
+
+status=0
+for file in *$suffix.java; do
+	java -ea -cp build com.timahoney.urlimage.${file%.java} || status=1
+done
+exit $status